@@ -0,0 +1,98 @@
+package chord;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Server using blocking sockets. Every accepted connection gets its own reader thread from the
+ * executor. With virtual threads each request is also served on a thread of its own, so the
+ * blocking handler code runs with high concurrency at little memory per connection.
+ */
+
+public class BlockingServer implements NodeServer {
+	private ServerSocket serverSocket;
+	private MessageHandler handler;
+	private ExecutorService readers;
+	private ExecutorService requestExecutor;
+	private volatile boolean running = true;
+
+	private BlockingServer(int port, MessageHandler handler, ExecutorService readers,
+			ExecutorService requestExecutor) throws IOException {
+		this.handler = handler;
+		this.readers = readers;
+		this.requestExecutor = requestExecutor;
+		serverSocket = new ServerSocket(port, 1024);
+	}
+
+	//Virtual thread per connection and per request
+	public static BlockingServer withVirtualThreads(int port, MessageHandler handler) throws IOException {
+		ExecutorService executor = newVirtualThreadExecutor();
+		return new BlockingServer(port, handler, executor, executor);
+	}
+
+	//Platform thread per connection, requests on a connection are served one after the other
+	public static BlockingServer withPlatformThreads(int port, MessageHandler handler) throws IOException {
+		AtomicInteger threadNumber = new AtomicInteger();
+		ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "connection-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		return new BlockingServer(port, handler, executor, null);
+	}
+
+	//Virtual threads are only available from Java 21, so they are looked up reflectively and
+	//platform threads are used on older runtimes
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			System.err.println("Virtual threads need Java 21 or later, falling back to platform threads");
+			return Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	@Override
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				Socket socket = serverSocket.accept();
+				try {
+					new PeerConnection(socket, handler, requestExecutor).start(readers);
+				} catch (IOException e) {
+					socket.close();
+					e.printStackTrace();
+				}
+			}
+		} catch (IOException e) {
+			if (running) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		readers.shutdownNow();
+	}
+}
@@ -0,0 +1,271 @@
+package chord;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Client of the ring for services which store and read keys without being a node themselves.
+ * The client takes the list of live nodes from the LookUp server and sends each request
+ * straight to the node owning the key by that list, marked direct. When the list is stale the
+ * node answers NOT_OWNER, or does not answer at all, and the request is sent again unmarked
+ * through the node before it, which routes it to the owner, or to a replica when the owner
+ * has failed. The list is refreshed every few seconds and after every such miss, by the nodes
+ * which joined and left since the membership epoch of the last refresh.
+ *
+ * Every operation is asynchronous; the futures complete on the connection threads and fail
+ * with an IOException carrying the reason a node gave.
+ */
+
+public class ChordClient {
+	private static final long REFRESH_PERIOD = 5000;
+	private Transport transport;
+	private InetAddress seed;
+	// Live nodes as last listed by the LookUp server. Replaced as a whole, never modified.
+	private volatile TreeMap<BigInteger, InetAddress> ring = new TreeMap<BigInteger, InetAddress>();
+	// Membership epoch of the ring, -1 until the first list arrives. Only the refresher thread
+	// changes it, after the constructor.
+	private volatile long epoch = -1;
+	private ConcurrentHashMap<BigInteger, InetAddress> addresses;
+	private ConnectionPool connectionPool;
+	private ScheduledExecutorService refresher;
+	private AtomicBoolean refreshing = new AtomicBoolean();
+	// Nodes do not send requests to clients; anything they send is dropped
+	private static final MessageHandler IGNORE = (message, connection) -> {
+	};
+
+	//Client of the ring seeded by the LookUp server on the host, over TCP
+	public ChordClient(String seedHost) throws IOException {
+		this(new TcpTransport(), InetAddress.getByName(seedHost));
+	}
+
+	//Client reaching the LookUp server at the address and the nodes through the transport.
+	//Fails when the server cannot be reached or no node is online.
+	public ChordClient(Transport transport, InetAddress seed) throws IOException {
+		this.transport = transport;
+		this.seed = seed;
+		addresses = new ConcurrentHashMap<BigInteger, InetAddress>();
+		connectionPool = new ConnectionPool(transport, PeerProcess.LISTENING_PORT, addresses::get, IGNORE);
+		refresh();
+		if (ring.isEmpty()) {
+			throw new IOException("No node is online");
+		}
+		refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "client-refresher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		refresher.scheduleWithFixedDelay(this::refreshQuietly, REFRESH_PERIOD, REFRESH_PERIOD, TimeUnit.MILLISECONDS);
+	}
+
+	//Stores the value under the key
+	public CompletableFuture<Void> put(String key, byte[] value) {
+		return send(new Message(Message.PUT, key, value)).thenApply(response -> {
+			result(response);
+			return null;
+		});
+	}
+
+	//Value stored under the key, null when the key is not stored
+	public CompletableFuture<byte[]> get(String key) {
+		return send(new Message(Message.GET, key)).thenApply(response -> (byte[]) result(response));
+	}
+
+	//Deletes the key, false when the key was not stored
+	public CompletableFuture<Boolean> delete(String key) {
+		return send(new Message(Message.DELETE, key)).thenApply(response -> (Boolean) result(response));
+	}
+
+	//Node owning the key. The lookup starts at the node before the owner by the client's list,
+	//which finds the owner in one hop unless the list is stale.
+	public CompletableFuture<NodeRef> lookup(String key) {
+		return lookup(FingerTable.hash(key));
+	}
+
+	//Node owning the id, see lookup(key)
+	public CompletableFuture<NodeRef> lookup(BigInteger id) {
+		BigInteger via = predecessorOf(ownerOf(id));
+		Message request = new Message(Message.FIND_SUCCESSOR, id);
+		request.traceId = Tracer.newTrace();
+		long start = System.nanoTime();
+		return request(via, request).thenApply(reply -> {
+			if (reply.payload.length > 4) {
+				throw new CompletionException(new IOException((String) reply.get(4)));
+			}
+			BigInteger owner = (BigInteger) reply.get(0);
+			InetAddress address = (InetAddress) reply.get(1);
+			// A node answering with itself leaves its address out
+			NodeRef found = new NodeRef(owner, address != null ? address : addresses.get(via));
+			found.rangeStart = (BigInteger) reply.get(3);
+			long downstream = 0;
+			for (long nanos : (long[]) reply.get(2)) {
+				found.hopNanos.add(nanos);
+				downstream += nanos;
+			}
+			found.hopNanos.add(0, System.nanoTime() - start - downstream);
+			return found;
+		});
+	}
+
+	//Streams every key in the ring interval (start, end], the whole ring when start equals end,
+	//which starts with the prefix, null for any key, to the consumer, see RingScan
+	public CompletableFuture<Void> scan(BigInteger start, BigInteger end, String prefix, BiConsumer<String, byte[]> consumer) {
+		return RingScan.scan(new RingScan.Nodes() {
+			@Override
+			public CompletableFuture<NodeRef> owner(BigInteger id) {
+				return lookup(id);
+			}
+
+			@Override
+			public CompletableFuture<Message> request(NodeRef node, Message request) {
+				addresses.putIfAbsent(node.id, node.address);
+				return ChordClient.this.request(node.id, request);
+			}
+		}, start, end, prefix, consumer);
+	}
+
+	//Streams every key starting with the prefix. Keys are placed by hash, so the whole ring is
+	//scanned.
+	public CompletableFuture<Void> scanPrefix(String prefix, BiConsumer<String, byte[]> consumer) {
+		BigInteger start = ring.firstKey();
+		return scan(start, start, prefix, consumer);
+	}
+
+	//Number of nodes in the client's list
+	public int nodeCount() {
+		return ring.size();
+	}
+
+	public void close() {
+		refresher.shutdownNow();
+		connectionPool.closeAll();
+	}
+
+	//Sends the key request to the key's owner by the client's list. A request the node turns
+	//down or does not answer is routed through the node before it.
+	private CompletableFuture<Message> send(Message request) {
+		request.traceId = Tracer.newTrace();
+		BigInteger owner = ownerOf(FingerTable.hash((String) request.get(0)));
+		Message direct = request.forward();
+		direct.direct = true;
+		return request(owner, direct)
+				.handle((response, error) -> error != null || isNotOwner(response) ? route(owner, request)
+						: CompletableFuture.completedFuture(response))
+				.thenCompose(response -> response);
+	}
+
+	//Sends the request through the node before the one which should have owned its key. That
+	//node holds the owner as its successor and routes around it when it has failed.
+	private CompletableFuture<Message> route(BigInteger owner, Message request) {
+		refreshSoon();
+		return request(predecessorOf(owner), request.forward());
+	}
+
+	private CompletableFuture<Message> request(BigInteger nodeId, Message request) {
+		try {
+			return connectionPool.get(nodeId).request(request);
+		} catch (IOException e) {
+			CompletableFuture<Message> failed = new CompletableFuture<Message>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
+
+	//Successor of the id among the listed nodes
+	private BigInteger ownerOf(BigInteger id) {
+		TreeMap<BigInteger, InetAddress> nodes = ring;
+		BigInteger owner = nodes.ceilingKey(id);
+		return owner != null ? owner : nodes.firstKey();
+	}
+
+	//Listed node before the given one
+	private BigInteger predecessorOf(BigInteger nodeId) {
+		TreeMap<BigInteger, InetAddress> nodes = ring;
+		BigInteger predecessor = nodes.lowerKey(nodeId);
+		return predecessor != null ? predecessor : nodes.lastKey();
+	}
+
+	//Result of a key value response. Failed operations carry the reason as a second field.
+	private static Object result(Message response) {
+		if (response.payload.length > 1) {
+			throw new CompletionException(new IOException((String) response.get(1)));
+		}
+		return response.get(0);
+	}
+
+	private static boolean isNotOwner(Message response) {
+		return response.payload.length > 1 && Message.NOT_OWNER.equals(response.get(1));
+	}
+
+	//Takes the changes to the list of live nodes since the last time from the LookUp server, or
+	//the whole list when the server no longer has them. Connections to nodes no longer listed
+	//are closed.
+	@SuppressWarnings("unchecked")
+	private void refresh() throws IOException {
+		RequestConnection connection = transport.connect(seed, PeerProcess.SEED_PORT, IGNORE);
+		try {
+			Message reply = connection.request(new Message(Message.LIVE_NODES, epoch)).get();
+			TreeMap<BigInteger, InetAddress> nodes = (TreeMap<BigInteger, InetAddress>) reply.get(0);
+			TreeMap<BigInteger, InetAddress> left = (TreeMap<BigInteger, InetAddress>) reply.get(2);
+			if (left != null) {
+				if (nodes.isEmpty() && left.isEmpty()) {
+					return;
+				}
+				TreeMap<BigInteger, InetAddress> changed = new TreeMap<BigInteger, InetAddress>(ring);
+				changed.keySet().removeAll(left.keySet());
+				changed.putAll(nodes);
+				nodes = changed;
+			}
+			// An empty list is not taken, requests still have the last nodes known to try
+			if (nodes.isEmpty()) {
+				return;
+			}
+			epoch = (Long) reply.get(1);
+			if (nodes.equals(ring)) {
+				return;
+			}
+			for (Map.Entry<BigInteger, InetAddress> node : nodes.entrySet()) {
+				addresses.put(node.getKey(), node.getValue());
+			}
+			ring = nodes;
+			addresses.keySet().retainAll(nodes.keySet());
+			connectionPool.retainAll(nodes.keySet());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the LookUp server");
+		} catch (ExecutionException e) {
+			throw new IOException("LookUp server unavailable: " + e.getCause().getMessage(), e.getCause());
+		} finally {
+			connection.close();
+		}
+	}
+
+	private void refreshQuietly() {
+		try {
+			refresh();
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+		} finally {
+			refreshing.set(false);
+		}
+	}
+
+	//Refreshes the list in the background unless a refresh is already on its way
+	private void refreshSoon() {
+		if (refreshing.compareAndSet(false, true)) {
+			refresher.execute(this::refreshQuietly);
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package chord;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * A connection a message arrived on. Handlers use it to answer the message.
+ */
+
+public interface Connection {
+	//Sends a message without waiting for any response
+	void send(Message message) throws IOException;
+
+	//Sends the response for a request received on this connection
+	void reply(Message request, Object... payload) throws IOException;
+
+	InetAddress getRemoteAddress();
+
+	boolean isClosed();
+
+	void close();
+}
@@ -0,0 +1,244 @@
+package chord;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Pool of connections to other nodes, one per node id. Connections are opened on first use,
+ * shared by every request to that node and reaped once they are closed or left idle. Requests
+ * on a connection are addressed to its node, which may be one of several virtual nodes of the
+ * process listening at the node's address.
+ */
+
+public class ConnectionPool {
+	private Map<BigInteger, RequestConnection> connections;
+	private Map<BigInteger, Object> connectLocks;
+	private Function<BigInteger, InetAddress> addressResolver;
+	private MessageHandler handler;
+	private int port;
+	private long idleTimeoutMillis;
+	private Transport transport;
+	// Reaping of this pool, while it is in use
+	private ScheduledFuture<?> reaping;
+	// One thread reaps the pools of every node in the process. Pools closed are taken off it
+	// at once, so it does not keep them reachable.
+	private static final ScheduledThreadPoolExecutor reaper = new ScheduledThreadPoolExecutor(1, runnable -> {
+		Thread thread = new Thread(runnable, "connection-reaper");
+		thread.setDaemon(true);
+		return thread;
+	});
+	static {
+		reaper.setRemoveOnCancelPolicy(true);
+	}
+	public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+	// Every pool of the process in use, for the metrics
+	private static final Set<ConnectionPool> pools = ConcurrentHashMap.newKeySet();
+	static {
+		Metrics.gauge("chord_pool_connections", "", "Connections open to other nodes", () -> {
+			long open = 0;
+			for (ConnectionPool pool : pools) {
+				open += pool.size();
+			}
+			return open;
+		});
+		Metrics.gauge("chord_pool_pending_requests", "", "Requests sent to other nodes and waiting for a response", () -> {
+			long pending = 0;
+			for (ConnectionPool pool : pools) {
+				for (RequestConnection connection : pool.connections.values()) {
+					pending += connection.pendingRequestCount();
+				}
+			}
+			return pending;
+		});
+	}
+
+	public ConnectionPool(int port, Function<BigInteger, InetAddress> addressResolver, MessageHandler handler) {
+		this(new TcpTransport(), port, addressResolver, handler, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	public ConnectionPool(Transport transport, int port, Function<BigInteger, InetAddress> addressResolver,
+			MessageHandler handler) {
+		this(transport, port, addressResolver, handler, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	public ConnectionPool(Transport transport, int port, Function<BigInteger, InetAddress> addressResolver,
+			MessageHandler handler, long idleTimeoutMillis) {
+		this.transport = transport;
+		this.port = port;
+		this.addressResolver = addressResolver;
+		this.handler = handler;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		connections = new ConcurrentHashMap<BigInteger, RequestConnection>();
+		connectLocks = new ConcurrentHashMap<BigInteger, Object>();
+		register();
+	}
+
+	//Has the pool reaped and counted in the metrics, again after closeAll when it is used again
+	private synchronized void register() {
+		if (reaping == null) {
+			long period = Math.max(1000, idleTimeoutMillis / 2);
+			reaping = reaper.scheduleAtFixedRate(this::reap, period, period, TimeUnit.MILLISECONDS);
+			pools.add(this);
+		}
+	}
+
+	//Returns the open connection to the node, connecting to it if there is none yet. Only
+	//callers of the same node wait for a connect in progress.
+	public RequestConnection get(BigInteger nodeId) throws IOException {
+		RequestConnection connection = connections.get(nodeId);
+		if (connection != null && !connection.isClosed()) {
+			return connection;
+		}
+		synchronized (connectLocks.computeIfAbsent(nodeId, id -> new Object())) {
+			connection = connections.get(nodeId);
+			if (connection == null || connection.isClosed()) {
+				InetAddress address = addressResolver.apply(nodeId);
+				if (address == null) {
+					throw new IOException("No address known for node " + FingerTable.shortId(nodeId));
+				}
+				connection = transport.connect(address, port, handler);
+				connection.setTarget(nodeId);
+				connections.put(nodeId, connection);
+				register();
+			}
+			return connection;
+		}
+	}
+
+	//Closes and forgets the connection to a node which left the network
+	public void remove(BigInteger nodeId) {
+		RequestConnection connection = connections.remove(nodeId);
+		if (connection != null) {
+			connection.close();
+		}
+	}
+
+	//Closes connections to every node which is no longer in the given set
+	public void retainAll(Collection<BigInteger> nodeIds) {
+		for (BigInteger nodeId : connections.keySet()) {
+			if (!nodeIds.contains(nodeId)) {
+				remove(nodeId);
+			}
+		}
+	}
+
+	//Drops closed connections and closes connections idle for longer than the timeout
+	public void reap() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<BigInteger, RequestConnection>> iter = connections.entrySet().iterator();
+		while (iter.hasNext()) {
+			RequestConnection connection = iter.next().getValue();
+			boolean isIdle = connection.pendingRequestCount() == 0 && now - connection.getLastUsed() > idleTimeoutMillis;
+			if (connection.isClosed() || isIdle) {
+				iter.remove();
+				connection.close();
+			}
+		}
+	}
+
+	public int size() {
+		return connections.size();
+	}
+
+	//Closes every connection and stops reaping the pool, when its node leaves the network
+	public void closeAll() {
+		synchronized (this) {
+			if (reaping != null) {
+				reaping.cancel(false);
+				reaping = null;
+			}
+			pools.remove(this);
+		}
+		for (BigInteger nodeId : connections.keySet()) {
+			remove(nodeId);
+		}
+	}
+
+	//Counts open file descriptors of this process. Only works where /proc is available
+	private static int openDescriptors() {
+		String[] fds = new File("/proc/self/fd").list();
+		return fds == null ? -1 : fds.length;
+	}
+
+	//Stress check for the pool: starts a few local nodes which answer lookups, runs many
+	//lookups against them from several threads and verifies the descriptor count stays fixed,
+	//then opens and closes pools as nodes leaving would and verifies none stays registered.
+	//Usage: java chord.ConnectionPool [lookups] [nodes]
+	public static void main(String[] args) throws Exception {
+		int lookups = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int nodeCount = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		MessageHandler echoHandler = (message, connection) -> {
+			try {
+				connection.reply(message, message.get(0));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		};
+		FrameServer server = new FrameServer(0, echoHandler);
+		Thread serverThread = new Thread(server);
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		InetAddress localhost = InetAddress.getLoopbackAddress();
+		ConnectionPool pool = new ConnectionPool(server.getPort(), nodeId -> localhost, echoHandler);
+		// Warm up one connection per node so the baseline includes them
+		for (int i = 0; i < nodeCount; i++) {
+			pool.get(BigInteger.valueOf(i)).request(new Message(Message.QUERY_FILE, i)).get();
+		}
+		int descriptorsBefore = openDescriptors();
+		ExecutorService clients = Executors.newFixedThreadPool(16);
+		AtomicInteger failures = new AtomicInteger();
+		long start = System.nanoTime();
+		for (int i = 0; i < lookups; i++) {
+			final int lookup = i;
+			clients.execute(() -> {
+				try {
+					BigInteger nodeId = BigInteger.valueOf(lookup % nodeCount);
+					Message response = pool.get(nodeId).request(new Message(Message.QUERY_FILE, lookup)).get(5,
+							TimeUnit.SECONDS);
+					if ((int) response.get(0) != lookup) {
+						failures.incrementAndGet();
+					}
+				} catch (Exception e) {
+					failures.incrementAndGet();
+				}
+			});
+		}
+		clients.shutdown();
+		clients.awaitTermination(5, TimeUnit.MINUTES);
+		long elapsed = System.nanoTime() - start;
+		int descriptorsAfter = openDescriptors();
+		System.out.println(lookups + " lookups over " + nodeCount + " nodes in " + elapsed / 1000000 + " ms, "
+				+ failures.get() + " failed");
+		System.out.println("Pooled connections: " + pool.size() + ", descriptors before: " + descriptorsBefore
+				+ ", after: " + descriptorsAfter);
+		pool.closeAll();
+		// Nodes joining and leaving, as under churn, must not leave their pools behind
+		for (int i = 0; i < nodeCount * 10; i++) {
+			ConnectionPool node = new ConnectionPool(server.getPort(), nodeId -> localhost, echoHandler);
+			node.get(BigInteger.valueOf(i)).request(new Message(Message.QUERY_FILE, i)).get();
+			node.closeAll();
+		}
+		boolean released = pools.isEmpty() && reaper.getQueue().isEmpty();
+		System.out.println("Pools left after shutdown: " + pools.size() + ", reaper tasks: " + reaper.getQueue().size());
+		server.close();
+		if (failures.get() > 0 || descriptorsAfter != descriptorsBefore || !released) {
+			System.exit(1);
+		}
+	}
+}
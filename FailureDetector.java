@@ -0,0 +1,171 @@
+package chord;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Phi accrual failure detector. Heartbeats received from each node are kept as a window of
+ * arrival intervals, and the time since the last heartbeat is turned into phi, the -log10 of the
+ * probability that a live node would have been silent for that long. A node is suspected while
+ * its phi is above the threshold and stops being suspected as soon as its heartbeats return.
+ * Intervals are taken as normally distributed, using the logistic approximation of the normal
+ * distribution.
+ *
+ * Lookups ask whether a node is suspected for every finger they pass, so the suspected nodes are
+ * published as a set which is never modified, replaced by updateSuspects once per heartbeat
+ * round and by a heartbeat from a suspected node. Asking takes no lock.
+ */
+
+public class FailureDetector {
+	public static final String THRESHOLD_PROPERTY = "chord.phi";
+	public static final double DEFAULT_THRESHOLD = 8.0;
+	private static final int WINDOW = 100;
+	private double threshold;
+	private long minStdDeviation;
+	// Interval assumed for a node watched before two of its heartbeats arrived
+	private long expectedInterval;
+	// Silence tolerated on top of the usual interval, e.g. for garbage collection pauses
+	private long acceptablePause;
+	private ConcurrentHashMap<BigInteger, History> histories;
+	// Nodes suspected as of the last update. Replaced as a whole, never modified.
+	private volatile Set<BigInteger> suspects = Collections.emptySet();
+
+	//Arrival intervals of one node's heartbeats
+	private static class History {
+		ArrayDeque<Long> intervals = new ArrayDeque<Long>();
+		long sum;
+		long squareSum;
+		long lastArrival;
+		// Whether a heartbeat arrived, rather than the node only being watched since lastArrival
+		boolean heard;
+	}
+
+	//Detector for heartbeats expected every interval milliseconds
+	public FailureDetector(long heartbeatInterval) {
+		this(Double.parseDouble(System.getProperty(THRESHOLD_PROPERTY, String.valueOf(DEFAULT_THRESHOLD))),
+				heartbeatInterval / 2, heartbeatInterval * 2, heartbeatInterval);
+	}
+
+	public FailureDetector(double threshold, long minStdDeviation, long acceptablePause, long expectedInterval) {
+		this.threshold = threshold;
+		this.minStdDeviation = minStdDeviation;
+		this.acceptablePause = acceptablePause;
+		this.expectedInterval = expectedInterval;
+		histories = new ConcurrentHashMap<BigInteger, History>();
+	}
+
+	//Records a heartbeat, or any other sign of life, from the node
+	public void heartbeat(BigInteger node) {
+		long now = System.currentTimeMillis();
+		History history = histories.computeIfAbsent(node, id -> new History());
+		synchronized (history) {
+			if (history.heard) {
+				long interval = now - history.lastArrival;
+				history.intervals.addLast(interval);
+				history.sum += interval;
+				history.squareSum += interval * interval;
+				if (history.intervals.size() > WINDOW) {
+					long oldest = history.intervals.removeFirst();
+					history.sum -= oldest;
+					history.squareSum -= oldest * oldest;
+				}
+			}
+			history.lastArrival = now;
+			history.heard = true;
+		}
+		if (suspects.contains(node)) {
+			clearSuspect(node);
+		}
+	}
+
+	//Starts watching the node, as if a heartbeat had just arrived from it, unless it is watched
+	//already. A node sending no heartbeat at all becomes suspected like one which stopped.
+	public void watch(BigInteger node) {
+		histories.computeIfAbsent(node, id -> {
+			History history = new History();
+			history.lastArrival = System.currentTimeMillis();
+			return history;
+		});
+	}
+
+	//Suspicion level of the node; 0 for a node which is not watched. Until two heartbeats have
+	//arrived they are taken to come every expected interval.
+	public double phi(BigInteger node) {
+		History history = histories.get(node);
+		if (history == null) {
+			return 0;
+		}
+		synchronized (history) {
+			int count = history.intervals.size();
+			double mean = count == 0 ? expectedInterval : (double) history.sum / count;
+			double variance = count == 0 ? 0 : (double) history.squareSum / count - mean * mean;
+			double deviation = Math.max(Math.sqrt(Math.max(variance, 0)), minStdDeviation);
+			long elapsed = System.currentTimeMillis() - history.lastArrival;
+			return phi(elapsed, mean + acceptablePause, deviation);
+		}
+	}
+
+	private static double phi(long elapsed, double mean, double deviation) {
+		double y = (elapsed - mean) / deviation;
+		double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+		if (elapsed > mean) {
+			return -Math.log10(e / (1.0 + e));
+		}
+		return -Math.log10(1.0 - 1.0 / (1.0 + e));
+	}
+
+	//Whether the node was suspected at the last update
+	public boolean isSuspected(BigInteger node) {
+		return suspects.contains(node);
+	}
+
+	//Works out which nodes are suspected now. Called every heartbeat round, since a node becomes
+	//suspected by staying silent rather than by anything arriving.
+	public synchronized void updateSuspects() {
+		HashSet<BigInteger> suspected = new HashSet<BigInteger>();
+		for (Map.Entry<BigInteger, History> history : histories.entrySet()) {
+			if (phi(history.getKey()) > threshold) {
+				suspected.add(history.getKey());
+			}
+		}
+		suspects = Collections.unmodifiableSet(suspected);
+		// A heartbeat which arrived while the set was built did not see the node in it
+		for (BigInteger node : suspected) {
+			if (phi(node) <= threshold) {
+				clearSuspect(node);
+			}
+		}
+	}
+
+	//Forgets a node which left the network
+	public void remove(BigInteger node) {
+		histories.remove(node);
+		clearSuspect(node);
+	}
+
+	//Forgets every node but the given ones. Heartbeats from a node are only regular while it is
+	//watched, so a node watched again starts over rather than keeping the gap in between.
+	public synchronized void retainAll(Collection<BigInteger> nodes) {
+		histories.keySet().retainAll(nodes);
+		if (!nodes.containsAll(suspects)) {
+			HashSet<BigInteger> suspected = new HashSet<BigInteger>(suspects);
+			suspected.retainAll(nodes);
+			suspects = Collections.unmodifiableSet(suspected);
+		}
+	}
+
+	private synchronized void clearSuspect(BigInteger node) {
+		if (suspects.contains(node)) {
+			HashSet<BigInteger> suspected = new HashSet<BigInteger>(suspects);
+			suspected.remove(node);
+			suspects = Collections.unmodifiableSet(suspected);
+		}
+	}
+}
@@ -1,73 +1,181 @@
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
+package chord;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.TreeMap;
 import java.net.InetAddress;
+import java.util.function.Predicate;
+
+import org.apache.commons.codec.digest.DigestUtils;
 
 /*
  * @author: Abdul Hakim Shanavas
- * Finger table object for each node in the network
+ * Finger table object for each node in the network. The i-th finger points at the successor of
+ * this node's id plus 2^i. Fingers start out pointing at this node itself and are kept up to date
+ * by the node's stabilization, see Peer.fixFingers. Every change publishes a new immutable
+ * snapshot of the fingers, so lookups read the table without locking while it is updated.
  */
 
 public class FingerTable {
 	public int noOfEntries;
-	public TreeMap<Integer, Integer> successorTable;
-	public int firstActualNode;
-	public int nodeID;
-	public static final int MAX_NODES = 16;
-	
-	public FingerTable(int entries, int id) {
+	public BigInteger nodeID;
+	// Identifier space is m bits wide, same as the SHA-1 digest
+	public static final int M = 160;
+	public static final BigInteger RING_SIZE = BigInteger.ONE.shiftLeft(M);
+	private BigInteger[] fingerStarts;
+	// Current fingers. Readers take the reference once and never see a table being changed.
+	private volatile Snapshot snapshot;
+
+	//Fingers of the table at one point in time, never modified once published. Besides the
+	//fingers by index it holds the distinct finger nodes sorted by their distance from this
+	//node, so that the closest preceding finger of an id is found with a binary search.
+	private static final class Snapshot {
+		final BigInteger[] fingers;
+		final BigInteger[] nodes;
+		final BigInteger[] distances;
+
+		Snapshot(BigInteger nodeID, BigInteger[] fingers) {
+			this.fingers = fingers;
+			TreeMap<BigInteger, BigInteger> byDistance = new TreeMap<BigInteger, BigInteger>();
+			for (BigInteger finger : fingers) {
+				if (!finger.equals(nodeID)) {
+					byDistance.put(RingMath.distance(nodeID, finger), finger);
+				}
+			}
+			distances = byDistance.keySet().toArray(new BigInteger[byDistance.size()]);
+			nodes = byDistance.values().toArray(new BigInteger[byDistance.size()]);
+		}
+
+		//Index of the last node strictly between this node and the id, -1 when there is none
+		int lastBefore(BigInteger distance) {
+			int index = Arrays.binarySearch(distances, distance);
+			return index >= 0 ? index - 1 : -index - 2;
+		}
+	}
+
+	public FingerTable(int entries, BigInteger id) {
 		nodeID = id;
 		noOfEntries = entries;
-		successorTable = new TreeMap<Integer, Integer>();		
+		fingerStarts = new BigInteger[entries];
+		BigInteger[] fingers = new BigInteger[entries];
+		for (int i = 0; i < entries; i++) {
+			fingerStarts[i] = nodeID.add(BigInteger.ONE.shiftLeft(i)).mod(RING_SIZE);
+			fingers[i] = nodeID;
+		}
+		snapshot = new Snapshot(nodeID, fingers);
 	}
-	
-	//Constructs finger table based on the live nodes in the network
-	public void constructFingerTable(TreeMap<Integer, InetAddress> liveNodes) {
-		System.out.println("********************** FINGER TABLE ************************");
+
+	//Hashes a node name or a key on to the identifier ring
+	public static BigInteger hash(String key) {
+		return new BigInteger(1, DigestUtils.sha1(key));
+	}
+
+	//Short form of an identifier used when printing
+	public static String shortId(BigInteger id) {
+		String hex = id.toString(16);
+		while (hex.length() < M / 4) {
+			hex = "0" + hex;
+		}
+		return hex.substring(0, 8);
+	}
+
+	//Constructs finger table based on the live nodes in the network. Successor of every
+	//finger start is found with a binary search (ceiling lookup) over the live nodes
+	public synchronized void constructFingerTable(TreeMap<BigInteger, InetAddress> liveNodes) {
+		BigInteger[] fingers = new BigInteger[noOfEntries];
 		for (int i = 0; i<noOfEntries; i++) {
-			Object nodes[] = liveNodes.keySet().toArray();
-			int successor = 0;
-			boolean isSuccessorFound = false;
-			int actualNode = ( nodeID + (int) Math.pow(2, i) ) % MAX_NODES;
-			if(i==0) {
-				firstActualNode = actualNode;
+			BigInteger successor = liveNodes.ceilingKey(fingerStarts[i]);
+			fingers[i] = successor == null ? liveNodes.firstKey() : successor;
+		}
+		snapshot = new Snapshot(nodeID, fingers);
+	}
+
+	//Immediate successor of this node in the ring
+	public BigInteger successor() {
+		return snapshot.fingers[0];
+	}
+
+	//Start of the i-th finger interval
+	public BigInteger fingerStart(int i) {
+		return fingerStarts[i];
+	}
+
+	public BigInteger finger(int i) {
+		return snapshot.fingers[i];
+	}
+
+	//Distinct nodes the fingers point at, this node excluded
+	public List<BigInteger> nodes() {
+		return Arrays.asList(snapshot.nodes);
+	}
+
+	public void setFinger(int i, BigInteger node) {
+		setFingers(i, i + 1, node);
+	}
+
+	//Points the fingers from index from up to, not including, index to at the node
+	public synchronized void setFingers(int from, int to, BigInteger node) {
+		BigInteger[] fingers = snapshot.fingers.clone();
+		Arrays.fill(fingers, from, to, node);
+		snapshot = new Snapshot(nodeID, fingers);
+	}
+
+	//Points the fingers held by a node which left or failed at the next finger after them,
+	//or at this node when there is none
+	public synchronized void removeNode(BigInteger node) {
+		BigInteger[] fingers = snapshot.fingers.clone();
+		for (int i = noOfEntries - 1; i >= 0; i--) {
+			if (fingers[i].equals(node)) {
+				fingers[i] = i + 1 < noOfEntries ? fingers[i + 1] : nodeID;
 			}
-			
-			if (!liveNodes.containsKey(actualNode)) {
-				for (int j = 0; j < nodes.length; j++) {
-					int node = (int)nodes[j];
-					if (node > actualNode) {
-						successor = node;
-						isSuccessorFound = true;
-						break;
-					}
-				}
-				if (!isSuccessorFound) {
-					successor = (int)nodes[0];
-				}
-			}else {
-				successor = actualNode;
+		}
+		snapshot = new Snapshot(nodeID, fingers);
+	}
+
+	//Returns the finger which most closely precedes the given id. Falls back to this
+	//node itself when none of the fingers lies between this node and the id
+	public BigInteger closestPrecedingNode(BigInteger id) {
+		return closestPrecedingNode(id, node -> false);
+	}
+
+	//Up to count distinct fingers preceding the given id, closest to the id first
+	public ArrayList<BigInteger> closestPrecedingNodes(BigInteger id, int count, Predicate<BigInteger> skip) {
+		Snapshot current = snapshot;
+		ArrayList<BigInteger> nodes = new ArrayList<BigInteger>(count);
+		// Every other node precedes this node's own id
+		BigInteger distance = id.equals(nodeID) ? RING_SIZE : RingMath.distance(nodeID, id);
+		for (int i = current.lastBefore(distance); i >= 0 && nodes.size() < count; i--) {
+			if (!skip.test(current.nodes[i])) {
+				nodes.add(current.nodes[i]);
 			}
-			successorTable.put(actualNode, successor);
-			System.out.println(actualNode + " = " + successor);
 		}
-		System.out.println("********************** END ************************");
-	}	
-	
-	//Iterates through finger table and prints each entry in the finger table
+		return nodes;
+	}
+
+	//Same as closestPrecedingNode, passing over the fingers pointing at skipped nodes
+	public BigInteger closestPrecedingNode(BigInteger id, Predicate<BigInteger> skip) {
+		ArrayList<BigInteger> nodes = closestPrecedingNodes(id, 1, skip);
+		return nodes.isEmpty() ? nodeID : nodes.get(0);
+	}
+
+	//Iterates through finger table and prints each entry in the finger table. Consecutive
+	//fingers with the same successor are printed as one range to keep the output short
 	public void printFingerTable() {
+		BigInteger[] fingers = snapshot.fingers;
 		System.out.println("********************** FINGER TABLE ************************");
-		Set<Entry<Integer, Integer>> set = successorTable.entrySet();
-		Iterator<Entry<Integer, Integer>> iter = set.iterator();
-		System.out.println("\t\t" + "Actual \t" + "Successor");
-		while (iter.hasNext()) {
-			Map.Entry<Integer, Integer> entry = (Map.Entry<Integer, Integer>) iter.next();
-			System.out.println("\t\t" + entry.getKey() + "\t" + entry.getValue());
+		System.out.println("\t\t" + "Fingers \t" + "Actual \t\t" + "Successor");
+		int rangeStart = 0;
+		for (int i = 1; i <= noOfEntries; i++) {
+			if (i == noOfEntries || !fingers[i].equals(fingers[rangeStart])) {
+				System.out.println("\t\t" + rangeStart + "-" + (i - 1) + "\t\t" + shortId(fingerStarts[rangeStart]) + "\t"
+						+ shortId(fingers[rangeStart]));
+				rangeStart = i;
+			}
 		}
 		System.out.println("********************** END ************************");
 	}
-	
-	
+
+
 }
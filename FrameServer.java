@@ -0,0 +1,268 @@
+package chord;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Non blocking server used by nodes and the LookUp server. A single selector thread accepts
+ * connections and reads frames from all of them; decoded messages are served by a small pool
+ * of worker threads, so a slow request does not hold up other connections.
+ */
+
+public class FrameServer implements NodeServer {
+	private MessageHandler handler;
+	private ExecutorService workers;
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private volatile boolean running = true;
+	public static final int DEFAULT_WORKERS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+	public FrameServer(int port, MessageHandler handler) throws IOException {
+		this(port, handler, DEFAULT_WORKERS);
+	}
+
+	public FrameServer(int port, MessageHandler handler, int workerCount) throws IOException {
+		this.handler = handler;
+		AtomicInteger workerNumber = new AtomicInteger();
+		ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(workerCount, runnable -> {
+			Thread thread = new Thread(runnable, "frame-worker-" + workerNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		workers = pool;
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port), 1024);
+		String server = "server=\"" + getPort() + "\"";
+		Metrics.gauge("chord_handler_queue_depth", server, "Messages received and waiting for a worker", () -> pool.getQueue().size());
+		Metrics.gauge("chord_handler_active", server, "Workers serving a message", pool::getActiveCount);
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	@Override
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	//Selector loop, runs until the server is closed
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept();
+						}
+						if (key.isValid() && key.isReadable()) {
+							((ChannelConnection) key.attachment()).readFrames();
+						}
+						if (key.isValid() && key.isWritable()) {
+							((ChannelConnection) key.attachment()).flush();
+						}
+					} catch (IOException e) {
+						// Other side closed the connection
+						if (key.attachment() != null) {
+							((ChannelConnection) key.attachment()).close();
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			if (running) {
+				e.printStackTrace();
+			}
+		} finally {
+			closeChannels();
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		key.attach(new ChannelConnection(channel, key));
+	}
+
+	//Stops the selector loop, which then closes every connection
+	@Override
+	public void close() {
+		running = false;
+		selector.wakeup();
+		workers.shutdownNow();
+	}
+
+	private void closeChannels() {
+		try {
+			serverChannel.close();
+			for (SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	//Connection accepted by the server. Reads happen on the selector thread; writes are queued
+	//by the workers and written whenever the socket can take more data.
+	private class ChannelConnection implements Connection {
+		private SocketChannel channel;
+		private SelectionKey key;
+		private ByteBuffer readBuffer;
+		private ArrayDeque<ByteBuffer> writeQueue;
+		private volatile boolean closed = false;
+
+		ChannelConnection(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+			readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+			writeQueue = new ArrayDeque<ByteBuffer>();
+		}
+
+		//Reads what is available and hands every complete frame to the workers
+		void readFrames() throws IOException {
+			if (channel.read(readBuffer) < 0) {
+				throw new IOException("End of stream");
+			}
+			readBuffer.flip();
+			while (readBuffer.remaining() >= 4) {
+				int length = readBuffer.getInt(readBuffer.position());
+				if (length <= 0 || length > WireCodec.MAX_FRAME_LENGTH) {
+					throw new IOException("Invalid frame length " + length);
+				}
+				if (readBuffer.remaining() < 4 + length) {
+					break;
+				}
+				readBuffer.position(readBuffer.position() + 4);
+				ByteBuffer frame = ByteBuffer.allocate(length);
+				int limit = readBuffer.limit();
+				readBuffer.limit(readBuffer.position() + length);
+				frame.put(readBuffer);
+				readBuffer.limit(limit);
+				frame.flip();
+				dispatch(frame);
+			}
+			readBuffer.compact();
+			// Grow the buffer when a single frame does not fit into it
+			if (readBuffer.position() >= 4 && !readBuffer.hasRemaining()) {
+				ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+				readBuffer.flip();
+				larger.put(readBuffer);
+				readBuffer = larger;
+			}
+		}
+
+		private void dispatch(ByteBuffer frame) {
+			workers.execute(() -> {
+				Message message;
+				try {
+					message = WireCodec.decode(frame);
+				} catch (RuntimeException e) {
+					System.err.println("Dropping connection to " + getRemoteAddress() + ": " + e.getMessage());
+					close();
+					return;
+				}
+				handler.handleMessage(message, this);
+			});
+		}
+
+		@Override
+		public void send(Message message) throws IOException {
+			write(message);
+		}
+
+		@Override
+		public void reply(Message request, Object... payload) throws IOException {
+			write(request.reply(payload));
+		}
+
+		private void write(Message message) throws IOException {
+			if (closed) {
+				throw new IOException("Connection to " + getRemoteAddress() + " is closed");
+			}
+			ByteBuffer encoded = WireCodec.encode(message);
+			// Encode buffer belongs to this thread, so the frame is copied before queueing
+			ByteBuffer frame = ByteBuffer.allocate(encoded.remaining());
+			frame.put(encoded);
+			frame.flip();
+			synchronized (this) {
+				writeQueue.add(frame);
+				flush();
+			}
+		}
+
+		//Writes queued frames until the socket would block, then waits for the selector
+		synchronized void flush() throws IOException {
+			try {
+				while (!writeQueue.isEmpty()) {
+					ByteBuffer frame = writeQueue.peek();
+					channel.write(frame);
+					if (frame.hasRemaining()) {
+						break;
+					}
+					writeQueue.poll();
+				}
+				int interest = writeQueue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+				if (key.isValid() && key.interestOps() != interest) {
+					key.interestOps(interest);
+					selector.wakeup();
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		@Override
+		public InetAddress getRemoteAddress() {
+			return channel.socket().getInetAddress();
+		}
+
+		@Override
+		public boolean isClosed() {
+			return closed;
+		}
+
+		@Override
+		public synchronized void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			writeQueue.clear();
+		}
+	}
+}
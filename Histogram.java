@@ -0,0 +1,92 @@
+package chord;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Concurrent histogram of non-negative long values with a bounded relative error, bucketed the
+ * way HdrHistogram does it. Values below 2^SUB_BUCKET_BITS are counted exactly; larger ones
+ * are bucketed by their highest bit and then linearly by the next SUB_BUCKET_BITS - 1 bits, so
+ * a quantile is within 1/64 of the true value. Recording is lock free and does not allocate.
+ */
+
+public class Histogram {
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int HALF = SUB_BUCKETS / 2;
+	private AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF);
+	private LongAdder count = new LongAdder();
+	private LongAdder sum = new LongAdder();
+	private AtomicLong max = new AtomicLong();
+	// Size of one recorded unit in the unit the histogram is reported in, e.g. 1e-9 for
+	// nanoseconds reported as seconds
+	private double unit;
+
+	public Histogram(double unit) {
+		this.unit = unit;
+	}
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	//Bucket of the value: the value itself when small, otherwise its highest bits
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+	}
+
+	//Largest value counted in the bucket
+	private static long highestIn(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = (index - SUB_BUCKETS) / HALF + 1;
+		long top = (index - SUB_BUCKETS) % HALF + HALF;
+		return ((top + 1) << shift) - 1;
+	}
+
+	//Value at the quantile, in reporting units; 0 while nothing is recorded
+	public double quantile(double quantile) {
+		long total = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			total += counts.get(i);
+		}
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < counts.length() && total > 0; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestIn(i), max.get()) * unit;
+			}
+		}
+		return 0;
+	}
+
+	public long count() {
+		return count.sum();
+	}
+
+	//Sum of the values recorded, in reporting units
+	public double sum() {
+		return sum.sum() * unit;
+	}
+
+	public double max() {
+		return max.get() * unit;
+	}
+}
@@ -0,0 +1,112 @@
+package chord;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Keys and values stored on the heap, indexed by their position on the ring. Safe to use from
+ * the listener and the menu at the same time. Membership is a single O(log n) lookup and the
+ * entries of any ring interval can be taken out without looking at the rest.
+ */
+
+public class InMemoryStorageEngine implements StorageEngine {
+	private ConcurrentSkipListMap<BigInteger, KeyValue> entries;
+
+	public InMemoryStorageEngine() {
+		entries = new ConcurrentSkipListMap<BigInteger, KeyValue>();
+	}
+
+	@Override
+	public void put(KeyValue entry) {
+		entries.put(FingerTable.hash(entry.key), entry);
+	}
+
+	@Override
+	public boolean putIfNewer(KeyValue entry) {
+		return entries.merge(FingerTable.hash(entry.key), entry,
+				(stored, incoming) -> incoming.version > stored.version ? incoming : stored) == entry;
+	}
+
+	@Override
+	public byte[] get(String key) {
+		KeyValue entry = entries.get(FingerTable.hash(key));
+		return entry != null && entry.key.equals(key) ? entry.value : null;
+	}
+
+	@Override
+	public KeyValue getEntry(String key) {
+		KeyValue entry = entries.get(FingerTable.hash(key));
+		return entry != null && entry.key.equals(key) ? entry : null;
+	}
+
+	@Override
+	public boolean delete(String key) {
+		BigInteger id = FingerTable.hash(key);
+		KeyValue entry = entries.get(id);
+		return entry != null && entry.key.equals(key) && entries.remove(id, entry);
+	}
+
+	@Override
+	public boolean deleteIfOlder(String key, long version) {
+		BigInteger id = FingerTable.hash(key);
+		KeyValue entry = entries.get(id);
+		return entry != null && entry.key.equals(key) && entry.version < version && entries.remove(id, entry);
+	}
+
+	@Override
+	public boolean contains(String key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public int size() {
+		return entries.size();
+	}
+
+	@Override
+	public void clear() {
+		entries.clear();
+	}
+
+	@Override
+	public ArrayList<String> keys() {
+		ArrayList<String> keys = new ArrayList<String>(entries.size());
+		for (KeyValue entry : entries.values()) {
+			keys.add(entry.key);
+		}
+		return keys;
+	}
+
+	@Override
+	public ArrayList<KeyValue> entries() {
+		return new ArrayList<KeyValue>(entries.values());
+	}
+
+	@Override
+	public ArrayList<KeyValue> range(BigInteger start, BigInteger end) {
+		return RingIndex.range(entries, start, end, entry -> entry);
+	}
+
+	@Override
+	public ArrayList<KeyValue> extractRange(BigInteger start, BigInteger end) {
+		return RingIndex.extractRange(entries, start, end, entry -> entry, entries::remove);
+	}
+
+	@Override
+	public ArrayList<KeyValue> digest(BigInteger start, BigInteger end, int maxKeys) {
+		return RingIndex.digest(entries, start, end, maxKeys, entry -> new KeyValue(entry.key, EMPTY_VALUE, entry.version));
+	}
+
+	@Override
+	public ArrayList<KeyValue> page(BigInteger start, BigInteger end, int maxBytes) {
+		return RingIndex.page(entries, start, end, maxBytes, entry -> entry);
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return keys().iterator();
+	}
+}
@@ -0,0 +1,30 @@
+package chord;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * A stored key together with its value and version, used when moving data between nodes.
+ * Every write gets a new version, so two copies of a key hold the same value exactly when
+ * their versions are equal.
+ */
+
+public class KeyValue {
+	public String key;
+	public byte[] value;
+	public long version;
+	private static final AtomicLong lastVersion = new AtomicLong();
+
+	public KeyValue(String key, byte[] value, long version) {
+		this.key = key;
+		this.value = value;
+		this.version = version;
+	}
+
+	//New version for a write made at this node. The wall clock sits in the high bits so versions
+	//stay unique across restarts; the low bits keep them increasing within a millisecond.
+	public static long nextVersion() {
+		long now = System.currentTimeMillis() << 16;
+		return lastVersion.updateAndGet(last -> Math.max(now, last + 1));
+	}
+}
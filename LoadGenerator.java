@@ -0,0 +1,200 @@
+package chord;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Load generator for a running ring, driving it through a ChordClient. It first stores every
+ * key of the key space, then runs gets and puts on keys drawn from a uniform or Zipfian
+ * distribution at a fixed rate for the given time, printing the throughput every second and
+ * the latency percentiles of each operation at the end.
+ *
+ * Operations are started on a fixed schedule whether or not earlier ones have finished, and
+ * latency counts from the time an operation was due, so a stalled ring shows up as high
+ * latency rather than as fewer requests sent. At most load.concurrency operations are
+ * outstanding; once that many are, the schedule waits and the wait counts as latency too.
+ *
+ * Usage: java chord.LoadGenerator [LookUp server host]
+ *   -Dload.rate=1000 (operations per second), -Dload.duration=30 (seconds), -Dload.keys=10000,
+ *   -Dload.distribution=zipfian or uniform, -Dload.zipf=0.99 (skew, below 1),
+ *   -Dload.reads=0.9 (share of gets), -Dload.value=100 (bytes), -Dload.concurrency=256,
+ *   -Dload.preload=true, -Dload.seed=1
+ *
+ * A local cluster to run it against is a LookUp server and a node process started with
+ * -Dchord.headless=true, hosting as many virtual nodes as -Dchord.vnodes asks for.
+ */
+
+public class LoadGenerator {
+	private static final double RATE = Double.parseDouble(System.getProperty("load.rate", "1000"));
+	private static final long DURATION = Long.getLong("load.duration", 30);
+	private static final int KEYS = Integer.getInteger("load.keys", 10000);
+	private static final String DISTRIBUTION = System.getProperty("load.distribution", "zipfian");
+	private static final double ZIPF = Double.parseDouble(System.getProperty("load.zipf", "0.99"));
+	private static final double READS = Double.parseDouble(System.getProperty("load.reads", "0.9"));
+	private static final int VALUE_SIZE = Integer.getInteger("load.value", 100);
+	private static final int CONCURRENCY = Integer.getInteger("load.concurrency", 256);
+	private ChordClient client;
+	private Semaphore outstanding = new Semaphore(CONCURRENCY);
+	private byte[] value;
+	// Latencies in nanoseconds, reported in milliseconds
+	private Histogram getMillis = new Histogram(1e-6);
+	private Histogram putMillis = new Histogram(1e-6);
+	private LongAdder errors = new LongAdder();
+	private LongAdder misses = new LongAdder();
+	private LongAdder completed = new LongAdder();
+
+	//Draws ranks 0 to n - 1 of the key space
+	private interface KeyChooser {
+		long next(Random random);
+	}
+
+	//Zipfian ranks, rank 0 the most popular, drawn in constant time with the method of Gray et
+	//al., "Quickly generating billion-record synthetic databases". Building it takes time
+	//linear in the number of keys.
+	private static class Zipfian implements KeyChooser {
+		private long n;
+		private double theta;
+		private double zetan;
+		private double alpha;
+		private double eta;
+
+		Zipfian(long n, double theta) {
+			if (theta <= 0 || theta >= 1) {
+				throw new IllegalArgumentException("Zipfian skew must be between 0 and 1, not " + theta);
+			}
+			this.n = n;
+			this.theta = theta;
+			for (long i = 1; i <= n; i++) {
+				zetan += 1 / Math.pow(i, theta);
+			}
+			double zeta2 = 1 + 1 / Math.pow(2, theta);
+			alpha = 1 / (1 - theta);
+			eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetan);
+		}
+
+		@Override
+		public long next(Random random) {
+			double u = random.nextDouble();
+			double uz = u * zetan;
+			if (uz < 1) {
+				return 0;
+			}
+			if (uz < 1 + Math.pow(0.5, theta)) {
+				return 1;
+			}
+			return Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+		}
+	}
+
+	public LoadGenerator(ChordClient client) {
+		this.client = client;
+		value = new byte[VALUE_SIZE];
+		new Random(0).nextBytes(value);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String seedHost = args.length > 0 ? args[0] : "localhost";
+		ChordClient client;
+		try {
+			client = new ChordClient(seedHost);
+		} catch (IOException e) {
+			System.err.println("Cannot reach the ring: " + e.getMessage());
+			System.exit(11);
+			return;
+		}
+		KeyChooser keys = "uniform".equals(DISTRIBUTION) ? random -> (long) random.nextInt(KEYS) : new Zipfian(KEYS, ZIPF);
+		System.out.println(String.format("%d nodes, %d keys (%s), %.0f ops/s for %d s, %.0f%% gets, %d byte values",
+				client.nodeCount(), KEYS, DISTRIBUTION, RATE, DURATION, READS * 100, VALUE_SIZE));
+		LoadGenerator generator = new LoadGenerator(client);
+		if (Boolean.parseBoolean(System.getProperty("load.preload", "true"))) {
+			generator.preload();
+		}
+		generator.run(keys, new Random(Long.getLong("load.seed", 1)));
+		client.close();
+		System.exit(generator.errors.sum() > 0 ? 1 : 0);
+	}
+
+	//Stores every key once, as fast as the outstanding limit allows
+	private void preload() throws InterruptedException {
+		long start = System.nanoTime();
+		for (int i = 0; i < KEYS; i++) {
+			outstanding.acquire();
+			client.put(key(i), value).whenComplete((result, error) -> {
+				if (error != null) {
+					errors.increment();
+				}
+				outstanding.release();
+			});
+		}
+		outstanding.acquire(CONCURRENCY);
+		outstanding.release(CONCURRENCY);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("Preloaded %d keys in %.1f s (%.0f puts/s), %d failed", KEYS, seconds, KEYS / seconds,
+				errors.sum()));
+		errors.reset();
+	}
+
+	//Starts operations on schedule for the duration, then waits for the last ones
+	private void run(KeyChooser keys, Random random) throws InterruptedException {
+		long intervalNanos = (long) (1e9 / RATE);
+		long start = System.nanoTime();
+		long end = start + DURATION * 1000000000L;
+		long nextReport = start + 1000000000L;
+		long reported = 0;
+		long sent = 0;
+		for (long due = start; due < end; due = start + ++sent * intervalNanos) {
+			long now;
+			while ((now = System.nanoTime()) < due) {
+				LockSupport.parkNanos(due - now);
+			}
+			if (now >= nextReport) {
+				long done = completed.sum();
+				System.out.println(String.format("%3d s\t%d ops/s\t%d outstanding\t%d errors",
+						(now - start) / 1000000000L, done - reported, CONCURRENCY - outstanding.availablePermits(), errors.sum()));
+				reported = done;
+				nextReport += 1000000000L;
+			}
+			outstanding.acquire();
+			String key = key(keys.next(random));
+			boolean read = random.nextDouble() < READS;
+			CompletableFuture<?> operation = read ? client.get(key) : client.put(key, value);
+			long scheduled = due;
+			operation.whenComplete((result, error) -> {
+				long nanos = System.nanoTime() - scheduled;
+				if (error != null) {
+					errors.increment();
+				} else if (read) {
+					getMillis.record(nanos);
+					if (result == null) {
+						misses.increment();
+					}
+				} else {
+					putMillis.record(nanos);
+				}
+				completed.increment();
+				outstanding.release();
+			});
+		}
+		outstanding.acquire(CONCURRENCY);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%d operations in %.1f s: %.0f ops/s, %d errors, %d gets of keys not stored", sent,
+				seconds, completed.sum() / seconds, errors.sum(), misses.sum()));
+		print("get", getMillis);
+		print("put", putMillis);
+	}
+
+	private static void print(String operation, Histogram millis) {
+		System.out.println(String.format("\t%s: %d, latency p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms",
+				operation, millis.count(), millis.quantile(0.5), millis.quantile(0.9), millis.quantile(0.99),
+				millis.quantile(0.999), millis.max()));
+	}
+
+	private static String key(long rank) {
+		return "key" + rank;
+	}
+}
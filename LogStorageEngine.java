@@ -0,0 +1,479 @@
+package chord;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Persistent storage engine. Every write is appended to a log made of memory mapped segment
+ * files, and an index from ring id to the latest record of each key is rebuilt by replaying the
+ * segments on startup. A node restarted after a crash or a leave therefore still has its keys.
+ *
+ * Record layout: length of the rest (int) | type (byte) | version (long) | key length (int) |
+ * key (UTF-8) | value. The length is written last, so a record cut short by a crash reads as
+ * the zero filled end of the segment. Once more than half of the log is overwritten or deleted
+ * records, the live records are copied into new segments and the old ones are removed.
+ */
+
+public class LogStorageEngine implements StorageEngine {
+	public static final String DIRECTORY_PROPERTY = "chord.data.dir";
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final byte PUT_RECORD = 1;
+	private static final byte DELETE_RECORD = 2;
+	private static final int HEADER_SIZE = 4 + 1 + 8 + 4;
+	private File directory;
+	private int segmentSize;
+	private ConcurrentSkipListMap<BigInteger, Location> index;
+	// Segment file numbers and their mappings, in the order they were written
+	private ArrayList<Integer> segmentNumbers;
+	private ArrayList<MappedByteBuffer> segments;
+	private int nextSegmentNumber;
+	private long liveBytes;
+	private long logBytes;
+	private ReentrantReadWriteLock lock;
+	private static final LongAdder RECOVERED_KEYS = Metrics.counter("chord_storage_recovered_keys_total", "",
+			"Keys read back from the log when a store is opened");
+	private static final LongAdder TRUNCATED_SEGMENTS = Metrics.counter("chord_storage_truncated_segments_total", "",
+			"Log segments cut at an invalid record when a store is opened");
+
+	//Where the latest value of a key lives in the log
+	private static class Location {
+		String key;
+		int segment;
+		int offset;
+		int length;
+		long version;
+
+		Location(String key, int segment, int offset, int length, long version) {
+			this.key = key;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.version = version;
+		}
+	}
+
+	public LogStorageEngine(File directory) {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	public LogStorageEngine(File directory, int segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		index = new ConcurrentSkipListMap<BigInteger, Location>();
+		segmentNumbers = new ArrayList<Integer>();
+		segments = new ArrayList<MappedByteBuffer>();
+		lock = new ReentrantReadWriteLock();
+		directory.mkdirs();
+		try {
+			recover();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot open log in " + directory, e);
+		}
+	}
+
+	//Data directory of a node, under -Dchord.data.dir (default ./data)
+	public static File directoryFor(String nodeName) {
+		return new File(System.getProperty(DIRECTORY_PROPERTY, "data"), nodeName);
+	}
+
+	@Override
+	public void put(KeyValue entry) {
+		lock.writeLock().lock();
+		try {
+			Location location = append(PUT_RECORD, entry.key, entry.value, entry.version);
+			Location previous = index.put(FingerTable.hash(entry.key), location);
+			liveBytes += recordSize(location);
+			if (previous != null) {
+				liveBytes -= recordSize(previous);
+			}
+			compactIfNeeded();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean putIfNewer(KeyValue entry) {
+		lock.writeLock().lock();
+		try {
+			Location stored = index.get(FingerTable.hash(entry.key));
+			if (stored != null && stored.version >= entry.version) {
+				return false;
+			}
+			put(entry);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public byte[] get(String key) {
+		lock.readLock().lock();
+		try {
+			Location location = index.get(FingerTable.hash(key));
+			return location != null && location.key.equals(key) ? read(location) : null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public KeyValue getEntry(String key) {
+		lock.readLock().lock();
+		try {
+			Location location = index.get(FingerTable.hash(key));
+			return location != null && location.key.equals(key) ? new KeyValue(key, read(location), location.version) : null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean delete(String key) {
+		lock.writeLock().lock();
+		try {
+			BigInteger id = FingerTable.hash(key);
+			Location location = index.get(id);
+			if (location == null || !location.key.equals(key)) {
+				return false;
+			}
+			remove(id, location);
+			compactIfNeeded();
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean deleteIfOlder(String key, long version) {
+		lock.writeLock().lock();
+		try {
+			Location location = index.get(FingerTable.hash(key));
+			return location != null && location.key.equals(key) && location.version < version && delete(key);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean contains(String key) {
+		lock.readLock().lock();
+		try {
+			Location location = index.get(FingerTable.hash(key));
+			return location != null && location.key.equals(key);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		return index.size();
+	}
+
+	@Override
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			for (Map.Entry<BigInteger, Location> entry : index.entrySet()) {
+				remove(entry.getKey(), entry.getValue());
+			}
+			compactIfNeeded();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public ArrayList<String> keys() {
+		lock.readLock().lock();
+		try {
+			ArrayList<String> keys = new ArrayList<String>(index.size());
+			for (Location location : index.values()) {
+				keys.add(location.key);
+			}
+			return keys;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public ArrayList<KeyValue> entries() {
+		lock.readLock().lock();
+		try {
+			ArrayList<KeyValue> entries = new ArrayList<KeyValue>(index.size());
+			for (Location location : index.values()) {
+				entries.add(entry(location));
+			}
+			return entries;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public ArrayList<KeyValue> range(BigInteger start, BigInteger end) {
+		lock.readLock().lock();
+		try {
+			return RingIndex.range(index, start, end, this::entry);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public ArrayList<KeyValue> extractRange(BigInteger start, BigInteger end) {
+		lock.writeLock().lock();
+		try {
+			ArrayList<KeyValue> extracted = RingIndex.extractRange(index, start, end, this::entry, this::remove);
+			compactIfNeeded();
+			return extracted;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public ArrayList<KeyValue> digest(BigInteger start, BigInteger end, int maxKeys) {
+		lock.readLock().lock();
+		try {
+			return RingIndex.digest(index, start, end, maxKeys,
+					location -> new KeyValue(location.key, EMPTY_VALUE, location.version));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public ArrayList<KeyValue> page(BigInteger start, BigInteger end, int maxBytes) {
+		lock.readLock().lock();
+		try {
+			return RingIndex.page(index, start, end, maxBytes, this::entry);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return keys().iterator();
+	}
+
+	//Flushes the mapped segments to disk
+	@Override
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			for (MappedByteBuffer segment : segments) {
+				segment.force();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	//Logs a delete record and drops the key from the index. Caller holds the write lock.
+	private void remove(BigInteger id, Location location) {
+		append(DELETE_RECORD, location.key, EMPTY_VALUE, location.version);
+		index.remove(id, location);
+		liveBytes -= recordSize(location);
+	}
+
+	private static int recordSize(Location location) {
+		return HEADER_SIZE + location.key.getBytes(StandardCharsets.UTF_8).length + location.length;
+	}
+
+	//Appends a record to the last segment, starting a new segment when it does not fit.
+	//Caller holds the write lock.
+	private Location append(byte type, String key, byte[] value, long version) {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		int size = HEADER_SIZE + keyBytes.length + value.length;
+		MappedByteBuffer segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		// Four bytes always stay free for the zero length that marks the end of the segment
+		if (segment == null || segment.remaining() < size + 4) {
+			segment = newSegment(size + 4);
+		}
+		int start = segment.position();
+		segment.position(start + 4);
+		segment.put(type);
+		segment.putLong(version);
+		segment.putInt(keyBytes.length);
+		segment.put(keyBytes);
+		int valueOffset = segment.position();
+		segment.put(value);
+		segment.putInt(start, size - 4);
+		logBytes += size;
+		return new Location(key, segments.size() - 1, valueOffset, value.length, version);
+	}
+
+	private MappedByteBuffer newSegment(int minimumSize) {
+		int number = nextSegmentNumber++;
+		try {
+			MappedByteBuffer segment = map(segmentFile(number), Math.max(segmentSize, minimumSize));
+			segmentNumbers.add(number);
+			segments.add(segment);
+			return segment;
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot create log segment in " + directory, e);
+		}
+	}
+
+	private File segmentFile(int number) {
+		return new File(directory, String.format("segment-%08d.log", number));
+	}
+
+	private static MappedByteBuffer map(File file, long size) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			if (raf.length() < size) {
+				raf.setLength(size);
+			}
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+		}
+	}
+
+	private KeyValue entry(Location location) {
+		return new KeyValue(location.key, read(location), location.version);
+	}
+
+	private byte[] read(Location location) {
+		byte[] value = new byte[location.length];
+		MappedByteBuffer segment = segments.get(location.segment);
+		segment.duplicate().position(location.offset).get(value);
+		return value;
+	}
+
+	//Rebuilds the index by replaying every segment in the order they were written. Replay of a
+	//segment stops at its first invalid record, a torn tail left by a crash, and the segment is
+	//truncated there. Appending continues after the last complete record of the last segment.
+	private void recover() throws IOException {
+		File[] files = directory.listFiles((dir, fileName) -> fileName.startsWith("segment-") && fileName.endsWith(".log"));
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			int number = Integer.parseInt(file.getName().substring(8, 16));
+			MappedByteBuffer segment = map(file, file.length());
+			segmentNumbers.add(number);
+			segments.add(segment);
+			nextSegmentNumber = number + 1;
+			int segmentIndex = segments.size() - 1;
+			boolean torn = false;
+			while (segment.remaining() >= HEADER_SIZE) {
+				int start = segment.position();
+				int length = segment.getInt();
+				if (length == 0) {
+					segment.position(start);
+					break;
+				}
+				if (!isValidRecord(segment, start, length)) {
+					segment.position(start);
+					torn = true;
+					break;
+				}
+				byte type = segment.get();
+				long version = segment.getLong();
+				byte[] keyBytes = new byte[segment.getInt()];
+				segment.get(keyBytes);
+				String key = new String(keyBytes, StandardCharsets.UTF_8);
+				int valueOffset = segment.position();
+				int valueLength = start + 4 + length - valueOffset;
+				segment.position(valueOffset + valueLength);
+				logBytes += length + 4;
+				BigInteger id = FingerTable.hash(key);
+				Location previous;
+				if (type == PUT_RECORD) {
+					Location location = new Location(key, segmentIndex, valueOffset, valueLength, version);
+					previous = index.put(id, location);
+					liveBytes += recordSize(location);
+				} else {
+					previous = index.remove(id);
+				}
+				if (previous != null) {
+					liveBytes -= recordSize(previous);
+				}
+			}
+			// Bytes after the end of the last segment would be read as records once appends reach them
+			if (torn || file == files[files.length - 1]) {
+				truncate(segment, file, torn);
+			}
+		}
+		RECOVERED_KEYS.add(index.size());
+	}
+
+	//Whether the record starting at start, whose length was just read, fits in the segment and
+	//has a known type and a key within the record
+	private static boolean isValidRecord(MappedByteBuffer segment, int start, int length) {
+		if (length < HEADER_SIZE - 4 || length > segment.remaining()) {
+			return false;
+		}
+		byte type = segment.get(start + 4);
+		int keyLength = segment.getInt(start + HEADER_SIZE - 4);
+		return (type == PUT_RECORD || type == DELETE_RECORD) && keyLength >= 0 && keyLength <= length - (HEADER_SIZE - 4);
+	}
+
+	//Zero fills the segment from its position on, so it ends after the last valid record
+	private static void truncate(MappedByteBuffer segment, File file, boolean torn) {
+		if (torn) {
+			TRUNCATED_SEGMENTS.increment();
+			System.err.println("Truncating " + file + " at invalid record at offset " + segment.position());
+		}
+		boolean written = false;
+		for (int i = segment.position(); i < segment.limit(); i++) {
+			if (segment.get(i) != 0) {
+				segment.put(i, (byte) 0);
+				written = true;
+			}
+		}
+		if (written) {
+			segment.force();
+		}
+	}
+
+	//Copies the live records into new segments once they make up less than half of the log,
+	//then deletes the old segments. Caller holds the write lock.
+	private void compactIfNeeded() {
+		if (logBytes < segmentSize || liveBytes * 2 > logBytes) {
+			return;
+		}
+		ArrayList<Integer> oldNumbers = segmentNumbers;
+		ArrayList<MappedByteBuffer> oldSegments = segments;
+		segmentNumbers = new ArrayList<Integer>();
+		segments = new ArrayList<MappedByteBuffer>();
+		logBytes = 0;
+		liveBytes = 0;
+		// New segments are numbered after the old ones, so a crash before the old files are
+		// deleted replays the old records first and the copies last
+		for (Map.Entry<BigInteger, Location> entry : index.entrySet()) {
+			Location location = entry.getValue();
+			byte[] value = new byte[location.length];
+			oldSegments.get(location.segment).duplicate().position(location.offset).get(value);
+			Location moved = append(PUT_RECORD, location.key, value, location.version);
+			index.put(entry.getKey(), moved);
+			liveBytes += recordSize(moved);
+		}
+		for (MappedByteBuffer segment : segments) {
+			segment.force();
+		}
+		for (int number : oldNumbers) {
+			segmentFile(number).delete();
+		}
+	}
+}
@@ -1,64 +1,98 @@
+package chord;
+
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.math.BigInteger;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /*
  * @author: Abdul Hakim Shanavas
- * Server class for keeping track of live nodes in the network and updating the list to all the nodes in the network
+ * Server class for keeping track of live nodes in the network. It only seeds the network: a joining
+ * node gets the list of live nodes with the reply to its join and joins through one of them. The
+ * nodes then maintain the ring among themselves, so the server is not involved in routing and
+ * need not be running once the nodes know each other.
+ *
+ * Every change to the live nodes starts a new membership epoch. Clients polling the list send
+ * the epoch they last saw and get only the nodes which joined and left since, or the whole
+ * list when they are further behind than the changes kept.
  */
 
 public class LookUpServer {
 
 	public static void main(String[] args) throws IOException {
-		ServerSocket serverSocket = new ServerSocket(5000);
+		Metrics.export();
+		// Routes all requests to the node handler
+		NodeServer server = NodeServer.create(PeerProcess.SEED_PORT, new LiveNodeHandler());
+		System.out.println("waiting on port " + PeerProcess.SEED_PORT);
+		server.run();
+	}
 
-		while (true) {
-			System.out.println("waiting on port 5000");
-			Socket clientSocket = serverSocket.accept();
-			ObjectOutputStream outputStream = new ObjectOutputStream(clientSocket.getOutputStream());
-			ObjectInputStream inputStream = new ObjectInputStream(clientSocket.getInputStream());
-			// Routes all requests to the node handler
-			Thread peerHandler = new LiveNodeHandler(clientSocket, inputStream, outputStream);
-			peerHandler.start();
+	//Handler answering the seed requests, for serving them over another transport
+	public static MessageHandler handler() {
+		return new LiveNodeHandler();
+	}
+}
 
+class LiveNodeHandler implements MessageHandler {
+	//A node which joined or left, with the address it was listed at
+	private static class Change {
+		long epoch;
+		BigInteger node;
+		InetAddress address;
+		boolean joined;
+
+		Change(long epoch, BigInteger node, InetAddress address, boolean joined) {
+			this.epoch = epoch;
+			this.node = node;
+			this.address = address;
+			this.joined = joined;
 		}
 	}
-}
 
-class LiveNodeHandler extends Thread {
-	ObjectInputStream inputStream;
-	ObjectOutputStream outputStream;
-	Socket peerSocket;
-	private static final int NODE_PORT = 8000;
-	public static final int MAX_NODES = 16;
-	private static TreeMap<Integer, InetAddress> liveNodes = new TreeMap<Integer, InetAddress>();
-
-	public LiveNodeHandler(Socket socket, ObjectInputStream is, ObjectOutputStream os) throws IOException {
-		this.peerSocket = socket;
-		this.inputStream = is;
-		this.outputStream = os;
+	private static TreeMap<BigInteger, InetAddress> liveNodes = new TreeMap<BigInteger, InetAddress>();
+	// Number of changes to liveNodes so far, and the last CHANGES of them, oldest first. Both
+	// are guarded by liveNodes.
+	private static long epoch = 0;
+	private static final ArrayDeque<Change> changes = new ArrayDeque<Change>();
+	private static final int CHANGES = 4096;
+	private static final LongAdder joins = Metrics.counter("chord_seed_joins_total", "", "Nodes joined through the LookUp server");
+	private static final LongAdder leaves = Metrics.counter("chord_seed_leaves_total", "", "Nodes which left through the LookUp server");
+	private static final LongAdder dropped = Metrics.counter("chord_seed_unreachable_total", "",
+			"Nodes dropped from the live nodes after a joining node could not reach them");
+	static {
+		Metrics.gauge("chord_seed_live_nodes", "", "Nodes the LookUp server knows to be in the ring", () -> {
+			synchronized (liveNodes) {
+				return liveNodes.size();
+			}
+		});
 	}
 
-	public void run() {
+	@Override
+	public void handleMessage(Message message, Connection connection) {
 		// Node connects to server only for joining the network and for leaving the
 		// network
 		try {
-			switch ((String) inputStream.readObject()) {
-			case "Joining":
-				nodeJoiningNetwork();
+			switch (message.opcode) {
+			case Message.JOIN:
+				nodeJoiningNetwork(message, connection);
 				break;
 
-			case "Going offline":
-				nodeLeavingNetwork();
+			case Message.LEAVE:
+				nodeLeavingNetwork(message, connection);
+				break;
+
+			case Message.UNREACHABLE:
+				nodesUnreachable(message, connection);
+				break;
+
+			case Message.LIVE_NODES:
+				liveNodes(message, connection);
 				break;
 			}
-		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
 		} catch (IOException e) {
 			e.printStackTrace();
 		} finally {
@@ -67,68 +101,99 @@ class LiveNodeHandler extends Thread {
 
 	}
 
-	// Adds the node to the list of live nodes. If the node id is already online
-	// then rejects the node with appropriate message.
-	public void nodeJoiningNetwork() {
-		try {
-			InetAddress peerIP = peerSocket.getInetAddress();
-			int nodeID = (int) inputStream.readObject();
-			System.out.println(nodeID);
-			synchronized (liveNodes) {
-				if (!liveNodes.containsKey(nodeID)) {
-					liveNodes.put(nodeID, peerIP);
-					outputStream.writeObject("Welcome " + nodeID);
-					System.out.println("Node :" + nodeID + " joined the network");
-					sendLiveNodes();
-				} else {
-					outputStream.writeObject(nodeID + " is already in use!");
-					System.out.println("Node :" + nodeID + " duplicate node! Connection refused!");
-				}
+	// Adds the node to the list of live nodes. A node already listed is joining again, after a
+	// crash the server never heard of or after its successors all failed, and is taken at its
+	// new address.
+	public void nodeJoiningNetwork(Message message, Connection connection) throws IOException {
+		InetAddress peerIP = connection.getRemoteAddress();
+		BigInteger nodeID = (BigInteger) message.get(0);
+		String shortID = FingerTable.shortId(nodeID);
+		boolean known;
+		TreeMap<BigInteger, InetAddress> nodes;
+		synchronized (liveNodes) {
+			InetAddress previous = liveNodes.put(nodeID, peerIP);
+			known = previous != null;
+			if (!peerIP.equals(previous)) {
+				changed(nodeID, peerIP, true);
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
-		} finally {
+			nodes = new TreeMap<BigInteger, InetAddress>(liveNodes);
+		}
+		joins.increment();
+		System.out.println("Node :" + shortID + (known ? " joined the network again" : " joined the network"));
+		connection.reply(message, "Welcome " + shortID, nodes);
+	}
 
+	// Removes the node from the live nodes list. Its neighbours hear about the leave from the
+	// node itself.
+	public void nodeLeavingNetwork(Message message, Connection connection) throws IOException {
+		BigInteger nodeID = (BigInteger) message.get(0);
+		synchronized (liveNodes) {
+			InetAddress address = liveNodes.remove(nodeID);
+			if (address != null) {
+				changed(nodeID, address, false);
+				leaves.increment();
+				System.out.println("Node :" + FingerTable.shortId(nodeID) + " left the network");
+			}
 		}
+		connection.reply(message);
 	}
 
-	// Removes the node from the live nodes list and sends the updated live nodes
-	// list to all the nodes in the network
-	public void nodeLeavingNetwork() {
-		try {
-			InetAddress peerIP = peerSocket.getInetAddress();
-			System.out.println(peerIP.toString());
-			int nodeID = (int) inputStream.readObject();
-			synchronized (liveNodes) {
-				liveNodes.remove(nodeID);
+	// Drops the nodes a joining node could not reach, crashed nodes which never left through
+	// the server. A node listed at another address since then joined again and is kept.
+	@SuppressWarnings("unchecked")
+	public void nodesUnreachable(Message message, Connection connection) throws IOException {
+		TreeMap<BigInteger, InetAddress> unreachable = (TreeMap<BigInteger, InetAddress>) message.get(0);
+		synchronized (liveNodes) {
+			for (Map.Entry<BigInteger, InetAddress> node : unreachable.entrySet()) {
+				if (liveNodes.remove(node.getKey(), node.getValue())) {
+					changed(node.getKey(), node.getValue(), false);
+					dropped.increment();
+					System.out.println("Node :" + FingerTable.shortId(node.getKey()) + " is unreachable");
+				}
 			}
-			sendLiveNodes();
-		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
+		}
+		connection.reply(message);
+	}
 
+	// Starts a new epoch with the node joined at the address, or left from it. Caller holds the
+	// liveNodes lock.
+	private static void changed(BigInteger nodeID, InetAddress address, boolean joined) {
+		epoch++;
+		changes.addLast(new Change(epoch, nodeID, address, joined));
+		if (changes.size() > CHANGES) {
+			changes.removeFirst();
 		}
 	}
 
-	// Sending live nodes to all the nodes in the network.
-	public void sendLiveNodes() {
-		try {
-			for (Map.Entry<Integer, InetAddress> entry : liveNodes.entrySet()) {
-				InetAddress nodeIP = entry.getValue();
-				System.out.println("Sending livenodes list to " + nodeIP.toString());
-				Socket socket = new Socket(nodeIP, NODE_PORT);
-				outputStream = new ObjectOutputStream(socket.getOutputStream());
-				outputStream.writeObject("Finger Table");
-				outputStream.writeObject(liveNodes);
+	// Answers with (nodes, epoch, left). A request carrying the epoch the sender last saw gets
+	// the nodes which joined since and those which left, by their last address. Any other, or
+	// one from before the changes kept, gets every live node and a null left.
+	public void liveNodes(Message message, Connection connection) throws IOException {
+		long since = message.payload.length > 0 ? (Long) message.get(0) : -1;
+		long current;
+		TreeMap<BigInteger, InetAddress> joined = new TreeMap<BigInteger, InetAddress>();
+		TreeMap<BigInteger, InetAddress> left = new TreeMap<BigInteger, InetAddress>();
+		synchronized (liveNodes) {
+			current = epoch;
+			Change first = changes.peekFirst();
+			if (since < 0 || since > epoch || (since < epoch && (first == null || first.epoch > since + 1))) {
+				joined.putAll(liveNodes);
+				left = null;
+			} else {
+				Iterator<Change> newest = changes.descendingIterator();
+				// Newest first, so only the last change of each node counts
+				while (newest.hasNext()) {
+					Change change = newest.next();
+					if (change.epoch <= since) {
+						break;
+					}
+					if (joined.containsKey(change.node) || left.containsKey(change.node)) {
+						continue;
+					}
+					(change.joined ? joined : left).put(change.node, change.address);
+				}
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-
 		}
+		connection.reply(message, joined, current, left);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,269 @@
+package chord;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Network of processes inside one JVM, used to simulate large rings. Every process gets an
+ * address of its own and a Transport bound to it, see at. Messages are encoded and decoded
+ * with WireCodec like on a socket, and delivered after the configured latency plus a random
+ * jitter; a share of them, given by the loss rate, is dropped. A failed address neither sends
+ * nor receives anything until it recovers. The network counts the messages sent, by opcode
+ * and by receiving address.
+ */
+
+public class MemoryNetwork {
+	private long latencyMillis;
+	private long jitterMillis;
+	private double lossRate;
+	private Map<InetSocketAddress, MessageHandler> listeners;
+	private Set<InetAddress> failed;
+	private ScheduledExecutorService delivery;
+	private ExecutorService handlers;
+	private AtomicLong messages;
+	private AtomicLongArray messagesByOpcode;
+	private Map<InetAddress, AtomicLong> messagesReceived;
+
+	public MemoryNetwork(long latencyMillis, long jitterMillis, double lossRate) {
+		this.latencyMillis = latencyMillis;
+		this.jitterMillis = jitterMillis;
+		this.lossRate = lossRate;
+		listeners = new ConcurrentHashMap<InetSocketAddress, MessageHandler>();
+		failed = ConcurrentHashMap.newKeySet();
+		delivery = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "network-delivery");
+			thread.setDaemon(true);
+			return thread;
+		});
+		ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors
+				.newFixedThreadPool(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()), runnable -> {
+					Thread thread = new Thread(runnable, "network-handler");
+					thread.setDaemon(true);
+					return thread;
+				});
+		handlers = pool;
+		Metrics.gauge("chord_handler_queue_depth", "server=\"memory\"", "Messages received and waiting for a worker",
+				() -> pool.getQueue().size());
+		Metrics.gauge("chord_handler_active", "server=\"memory\"", "Workers serving a message", pool::getActiveCount);
+		messages = new AtomicLong();
+		messagesByOpcode = new AtomicLongArray(256);
+		messagesReceived = new ConcurrentHashMap<InetAddress, AtomicLong>();
+	}
+
+	//Transport of the process at the address
+	public Transport at(InetAddress address) {
+		return new Endpoint(address);
+	}
+
+	//The i-th address of the simulated network, 10.0.0.1 onwards
+	public static InetAddress address(int i) {
+		int host = i + 1;
+		try {
+			return InetAddress.getByAddress(new byte[] { 10, (byte) (host >> 16), (byte) (host >> 8), (byte) host });
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	//Cuts the process at the address off, as if it crashed
+	public void fail(InetAddress address) {
+		failed.add(address);
+	}
+
+	public void recover(InetAddress address) {
+		failed.remove(address);
+	}
+
+	public long messageCount() {
+		return messages.get();
+	}
+
+	public long messageCount(byte opcode) {
+		return messagesByOpcode.get(opcode & 0xff);
+	}
+
+	//Messages received so far by each address
+	public Map<InetAddress, AtomicLong> messagesReceived() {
+		return messagesReceived;
+	}
+
+	public void shutdown() {
+		delivery.shutdownNow();
+		handlers.shutdownNow();
+	}
+
+	private class Endpoint implements Transport {
+		private InetAddress address;
+
+		Endpoint(InetAddress address) {
+			this.address = address;
+		}
+
+		@Override
+		public void listen(int port, MessageHandler handler) {
+			listeners.put(new InetSocketAddress(address, port), handler);
+		}
+
+		@Override
+		public RequestConnection connect(InetAddress remote, int port, MessageHandler handler) throws IOException {
+			MessageHandler server = listeners.get(new InetSocketAddress(remote, port));
+			if (server == null || failed.contains(remote) || failed.contains(address)) {
+				throw new ConnectException("Connection refused: " + remote + ":" + port);
+			}
+			Link client = new Link(address, remote, handler);
+			Link accepted = new Link(remote, address, server);
+			client.other = accepted;
+			accepted.other = client;
+			return client;
+		}
+	}
+
+	//One end of a connection between two processes
+	private class Link implements RequestConnection {
+		private InetAddress local;
+		private InetAddress remote;
+		private MessageHandler handler;
+		private Link other;
+		private Map<Long, CompletableFuture<Message>> pendingRequests;
+		private AtomicLong nextRequestId;
+		private volatile long lastUsed;
+		private volatile boolean closed = false;
+		private BigInteger target;
+
+		Link(InetAddress local, InetAddress remote, MessageHandler handler) {
+			this.local = local;
+			this.remote = remote;
+			this.handler = handler;
+			pendingRequests = new ConcurrentHashMap<Long, CompletableFuture<Message>>();
+			nextRequestId = new AtomicLong(1);
+			lastUsed = System.currentTimeMillis();
+		}
+
+		@Override
+		public void send(Message message) throws IOException {
+			write(message);
+		}
+
+		@Override
+		public CompletableFuture<Message> request(Message message) {
+			return request(message, PeerConnection.TIMEOUT);
+		}
+
+		@Override
+		public CompletableFuture<Message> request(Message message, long timeoutMillis) {
+			CompletableFuture<Message> response = new CompletableFuture<Message>();
+			long requestId = nextRequestId.getAndIncrement();
+			message.requestId = requestId;
+			pendingRequests.put(requestId, response);
+			try {
+				write(message);
+			} catch (IOException e) {
+				pendingRequests.remove(requestId);
+				response.completeExceptionally(e);
+				return response;
+			}
+			response.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+					.whenComplete((reply, error) -> pendingRequests.remove(requestId));
+			return response;
+		}
+
+		@Override
+		public void reply(Message request, Object... payload) throws IOException {
+			write(request.reply(payload));
+		}
+
+		@Override
+		public void setTarget(BigInteger nodeId) {
+			target = nodeId;
+		}
+
+		//Encodes the message and schedules its delivery at the other end, unless it is lost
+		private void write(Message message) throws IOException {
+			if (closed) {
+				throw new IOException("Connection to " + remote + " is closed");
+			}
+			lastUsed = System.currentTimeMillis();
+			ByteBuffer frame = WireCodec.encode(message, message.isResponse || target == null ? message.target : target);
+			byte[] body = Arrays.copyOfRange(frame.array(), frame.arrayOffset() + 4, frame.arrayOffset() + frame.limit());
+			messages.incrementAndGet();
+			messagesByOpcode.incrementAndGet(message.opcode & 0xff);
+			messagesReceived.computeIfAbsent(remote, address -> new AtomicLong()).incrementAndGet();
+			if (failed.contains(local) || failed.contains(remote) || ThreadLocalRandom.current().nextDouble() < lossRate) {
+				return;
+			}
+			long delay = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+			delivery.schedule(() -> handlers.execute(() -> other.receive(WireCodec.decode(ByteBuffer.wrap(body)))), delay,
+					TimeUnit.MILLISECONDS);
+		}
+
+		private void receive(Message message) {
+			if (closed || failed.contains(local)) {
+				return;
+			}
+			lastUsed = System.currentTimeMillis();
+			if (message.isResponse) {
+				CompletableFuture<Message> response = pendingRequests.remove(message.requestId);
+				if (response != null) {
+					response.complete(message);
+				}
+			} else {
+				handler.handleMessage(message, this);
+			}
+		}
+
+		@Override
+		public InetAddress getRemoteAddress() {
+			return remote;
+		}
+
+		@Override
+		public boolean isClosed() {
+			return closed;
+		}
+
+		@Override
+		public long getLastUsed() {
+			return lastUsed;
+		}
+
+		@Override
+		public int pendingRequestCount() {
+			return pendingRequests.size();
+		}
+
+		//Closes both ends and fails every request still waiting for a response
+		@Override
+		public void close() {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+			}
+			IOException closedException = new IOException("Connection to " + remote + " closed");
+			for (CompletableFuture<Message> response : pendingRequests.values()) {
+				response.completeExceptionally(closedException);
+			}
+			pendingRequests.clear();
+			other.close();
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package chord;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigInteger;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Message exchanged between nodes and the LookUp server. Every message carries a request id
+ * so that many requests can share one connection and responses can be matched to them.
+ * Messages are sent as binary frames, see WireCodec.
+ */
+
+public class Message {
+	// Node and LookUp server operations
+	public static final byte JOIN = 1;
+	public static final byte LEAVE = 2;
+	// Nodes the LookUp server knows to be in the ring, answered with their ids and addresses
+	public static final byte LIVE_NODES = 3;
+	public static final byte INSERT_FILE = 4;
+	public static final byte TRANSFER_FILES = 5;
+	public static final byte GET_FILES = 6;
+	public static final byte QUERY_FILE = 7;
+	// Key value operations, and QUERY_FILE, are routed to the key's owner which sends the
+	// response. A GET carrying a second field is answered by the receiving node itself, see
+	// Peer.routeRequest.
+	public static final byte PUT = 9;
+	public static final byte GET = 10;
+	public static final byte DELETE = 11;
+	// Chord maintenance between nodes
+	public static final byte FIND_SUCCESSOR = 12;
+	public static final byte GET_PREDECESSOR = 13;
+	public static final byte NOTIFY = 14;
+	// Copies of writes sent by a key's owner to its successors
+	public static final byte REPLICATE = 15;
+	// Heartbeat for the failure detector, answered with an empty response
+	public static final byte PING = 16;
+	// Step of an iterative lookup, answered with (found, nodes): the successor of the id when
+	// found, otherwise the closest preceding fingers to ask next
+	public static final byte CLOSEST_PRECEDING = 17;
+	// Read of a key to be cached by the reader, payload (key, reader), answered with the entry
+	// and its version, an empty entry list when the key is not stored. The owner remembers the
+	// reader for the cache's time to live and sends it INVALIDATE (key, version) on a write.
+	public static final byte CACHED_GET = 18;
+	public static final byte INVALIDATE = 19;
+	// Batches of keys sent straight to their owner. MULTI_PUT carries entries and is answered
+	// with the keys the receiver does not own; MULTI_GET carries keys and is answered with the
+	// entries found and the keys the receiver does not own.
+	public static final byte MULTI_PUT = 20;
+	public static final byte MULTI_GET = 21;
+	// Load report of a node, answered with (keys owned, successors) for the distribution report
+	public static final byte STATS = 22;
+	// Page of a range scan, payload (cursor, end, prefix, max keys), answered with the entries
+	// after the cursor which the receiver owns, the id the page reaches and the receiver's
+	// successor with its address, see RingScan. A cursor the receiver does not own is
+	// answered NOT_OWNER.
+	public static final byte SCAN = 23;
+	// Nodes listed by the LookUp server which a joining node could not reach, payload their ids
+	// with the address they were tried at. The server stops listing them until they join again.
+	public static final byte UNREACHABLE = 24;
+	// Answer to a direct request received by a node which does not own the key
+	public static final String NOT_OWNER = "Not the owner";
+
+	// Request id 0 is used for one way messages which do not expect a response
+	public long requestId;
+	public boolean isResponse;
+	// Sent straight to the key's owner found in the route cache; the receiver answers NOT_OWNER
+	// instead of forwarding when the key is not its own
+	public boolean direct;
+	// Virtual node the request is meant for, null for the first node of the receiving process
+	public BigInteger target;
+	// Trace of the operation the message is sent for, 0 when it is not traced, see Tracer
+	public long traceId;
+	public byte opcode;
+	public Object[] payload;
+
+	public Message(byte opcode, Object... payload) {
+		this.opcode = opcode;
+		this.payload = payload;
+	}
+
+	//Builds the response for this message, tagged with the same request id
+	public Message reply(Object... payload) {
+		Message response = new Message(opcode, payload);
+		response.requestId = requestId;
+		response.isResponse = true;
+		response.traceId = traceId;
+		return response;
+	}
+
+	//Copy of the message sent on behalf of the same operation
+	public Message forward() {
+		Message copy = new Message(opcode, payload);
+		copy.direct = direct;
+		copy.traceId = traceId;
+		return copy;
+	}
+
+	//Name of the opcode, as declared above
+	public static String name(byte opcode) {
+		String name = NAMES[opcode & 0xff];
+		return name != null ? name : "OPCODE_" + (opcode & 0xff);
+	}
+
+	private static final String[] NAMES = new String[256];
+	static {
+		for (Field field : Message.class.getFields()) {
+			if (field.getType() == byte.class && Modifier.isStatic(field.getModifiers())) {
+				try {
+					NAMES[field.getByte(null) & 0xff] = field.getName();
+				} catch (IllegalAccessException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+	}
+
+	public Object get(int index) {
+		return payload[index];
+	}
+}
@@ -0,0 +1,10 @@
+package chord;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Implemented by anything that serves requests arriving on a connection
+ */
+
+public interface MessageHandler {
+	void handleMessage(Message message, Connection connection);
+}
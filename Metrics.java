@@ -0,0 +1,241 @@
+package chord;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Metrics of the process: latency and hop count histograms, counters and gauges, each a series
+ * of a named family told apart by its labels. Series are created once and then updated without
+ * locks, so recording costs a few atomic increments on the request path.
+ *
+ * The metrics are exported as attributes of the chord:type=Metrics MBean, and, when
+ * -Dchord.metrics.port is set, in the Prometheus text format at http://localhost:port/metrics.
+ * The same server lists the recorded trace spans at /traces, or those of one trace at
+ * /traces?id=<trace id>.
+ */
+
+public class Metrics {
+	public static final String PORT_PROPERTY = "chord.metrics.port";
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+	private static final String[] QUANTILE_NAMES = { "p50", "p90", "p99", "p999" };
+	private static final ConcurrentHashMap<String, Family> families = new ConcurrentHashMap<String, Family>();
+	private static boolean exported = false;
+
+	//Series sharing a name, help text and type
+	private static class Family {
+		String name;
+		String help;
+		String type;
+		ConcurrentHashMap<String, Object> series = new ConcurrentHashMap<String, Object>();
+
+		Family(String name, String help, String type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	private Metrics() {
+	}
+
+	//Histogram of the family with the labels, given as name="value" pairs separated by commas.
+	//Values are recorded in units of the given size, e.g. 1e-9 for nanoseconds kept as seconds.
+	public static Histogram histogram(String name, String labels, String help, double unit) {
+		return (Histogram) family(name, help, "summary").series.computeIfAbsent(labels, l -> new Histogram(unit));
+	}
+
+	public static LongAdder counter(String name, String labels, String help) {
+		return (LongAdder) family(name, help, "counter").series.computeIfAbsent(labels, l -> new LongAdder());
+	}
+
+	//Registers a value read when the metrics are exported; a later gauge with the same labels
+	//replaces it
+	public static void gauge(String name, String labels, String help, LongSupplier value) {
+		family(name, help, "gauge").series.put(labels, value);
+	}
+
+	private static Family family(String name, String help, String type) {
+		return families.computeIfAbsent(name, n -> new Family(name, help, type));
+	}
+
+	//Registers the MBean and starts the HTTP endpoint if a port is configured. Only the first
+	//call in a process does anything.
+	public static synchronized void export() {
+		if (exported) {
+			return;
+		}
+		exported = true;
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(), new ObjectName("chord:type=Metrics"));
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+		Integer port = Integer.getInteger(PORT_PROPERTY);
+		if (port != null) {
+			try {
+				HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+				server.createContext("/metrics", exchange -> respond(exchange, "text/plain; version=0.0.4", prometheus()));
+				server.createContext("/traces", Metrics::traces);
+				server.start();
+			} catch (IOException e) {
+				System.err.println("Cannot serve metrics on port " + port + ": " + e.getMessage());
+			}
+		}
+	}
+
+	//All series in the Prometheus text format. Histograms are written as summaries.
+	public static String prometheus() {
+		StringBuilder text = new StringBuilder();
+		for (Family family : new TreeMap<String, Family>(families).values()) {
+			text.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+			text.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+			for (Map.Entry<String, Object> series : new TreeMap<String, Object>(family.series).entrySet()) {
+				String labels = series.getKey();
+				Object metric = series.getValue();
+				if (metric instanceof Histogram) {
+					Histogram histogram = (Histogram) metric;
+					for (double quantile : QUANTILES) {
+						sample(text, family.name, join(labels, "quantile=\"" + quantile + "\""), histogram.quantile(quantile));
+					}
+					sample(text, family.name + "_sum", labels, histogram.sum());
+					sample(text, family.name + "_count", labels, histogram.count());
+				} else {
+					sample(text, family.name, labels, value(metric));
+				}
+			}
+		}
+		return text.toString();
+	}
+
+	private static void sample(StringBuilder text, String name, String labels, double value) {
+		text.append(name);
+		if (!labels.isEmpty()) {
+			text.append('{').append(labels).append('}');
+		}
+		text.append(' ').append(value == Math.rint(value) && Math.abs(value) < 1e15 ? String.valueOf((long) value)
+				: String.valueOf(value)).append('\n');
+	}
+
+	private static String join(String labels, String label) {
+		return labels.isEmpty() ? label : labels + "," + label;
+	}
+
+	private static double value(Object metric) {
+		return metric instanceof LongAdder ? ((LongAdder) metric).sum() : ((LongSupplier) metric).getAsLong();
+	}
+
+	//Answers /traces with the spans of the trace given by the id parameter, or all of them
+	private static void traces(HttpExchange exchange) throws IOException {
+		String query = exchange.getRequestURI().getQuery();
+		long traceId = 0;
+		if (query != null && query.startsWith("id=")) {
+			try {
+				traceId = Long.parseUnsignedLong(query.substring(3), 16);
+			} catch (NumberFormatException e) {
+				respond(exchange, "text/plain", "Invalid trace id\n");
+				return;
+			}
+		}
+		respond(exchange, "text/plain", String.join("\n", Tracer.spans(traceId)) + "\n");
+	}
+
+	private static void respond(HttpExchange exchange, String contentType, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(200, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	//Every series as JMX attributes, named like the Prometheus samples. A histogram gives its
+	//count, quantiles and maximum.
+	private static TreeMap<String, Object> attributes() {
+		TreeMap<String, Object> attributes = new TreeMap<String, Object>();
+		for (Family family : families.values()) {
+			for (Map.Entry<String, Object> series : family.series.entrySet()) {
+				String name = family.name + (series.getKey().isEmpty() ? "" : "{" + series.getKey() + "}");
+				Object metric = series.getValue();
+				if (metric instanceof Histogram) {
+					Histogram histogram = (Histogram) metric;
+					attributes.put(name + ".count", histogram.count());
+					for (int i = 0; i < QUANTILES.length; i++) {
+						attributes.put(name + "." + QUANTILE_NAMES[i], histogram.quantile(QUANTILES[i]));
+					}
+					attributes.put(name + ".max", histogram.max());
+				} else {
+					attributes.put(name, (long) value(metric));
+				}
+			}
+		}
+		return attributes;
+	}
+
+	//Read only view of the metrics for JMX clients such as jconsole
+	private static class MetricsBean implements DynamicMBean {
+		@Override
+		public Object getAttribute(String attribute) {
+			return attributes().get(attribute);
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] names) {
+			TreeMap<String, Object> attributes = attributes();
+			AttributeList list = new AttributeList();
+			for (String name : names) {
+				if (attributes.containsKey(name)) {
+					list.add(new Attribute(name, attributes.get(name)));
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) {
+			throw new UnsupportedOperationException("Metrics are read only");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) {
+			throw new UnsupportedOperationException("No operations");
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			ArrayList<MBeanAttributeInfo> infos = new ArrayList<MBeanAttributeInfo>();
+			for (Map.Entry<String, Object> attribute : attributes().entrySet()) {
+				infos.add(new MBeanAttributeInfo(attribute.getKey(), attribute.getValue().getClass().getName(),
+						attribute.getKey(), true, false, false));
+			}
+			return new MBeanInfo(Metrics.class.getName(), "Metrics of the Chord node process", infos.toArray(new MBeanAttributeInfo[0]),
+					null, null, null);
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package chord;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.util.ArrayList;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * A node of the ring as returned by a lookup: its id and the address it can be reached at. A
+ * lookup also reports how long each hop took, from the first hop to the last, and the node
+ * preceding the owner when it is known, so that the owner's interval can be cached.
+ */
+
+public class NodeRef {
+	public BigInteger id;
+	public InetAddress address;
+	public ArrayList<Long> hopNanos;
+	// The owner holds the ids in (rangeStart, id]; null when unknown
+	public BigInteger rangeStart;
+
+	public NodeRef(BigInteger id, InetAddress address) {
+		this.id = id;
+		this.address = address;
+		hopNanos = new ArrayList<Long>();
+	}
+
+	public int hops() {
+		return hopNanos.size();
+	}
+
+	@Override
+	public String toString() {
+		if (hopNanos.isEmpty()) {
+			return FingerTable.shortId(id) + " at " + address + " (local)";
+		}
+		StringBuilder hops = new StringBuilder();
+		for (long nanos : hopNanos) {
+			hops.append(hops.length() == 0 ? "" : ", ").append(String.format("%.2f ms", nanos / 1e6));
+		}
+		return FingerTable.shortId(id) + " at " + address + " (" + hopNanos.size() + " hops: " + hops + ")";
+	}
+}
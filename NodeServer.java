@@ -0,0 +1,39 @@
+package chord;
+
+import java.io.IOException;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Server accepting connections for a node or the LookUp server. The execution mode is chosen
+ * at startup with -Dchord.server=nio|virtual|platform (default nio):
+ *
+ *   nio      - selector loop with a small worker pool, see FrameServer
+ *   virtual  - blocking sockets, a virtual thread per connection and per request
+ *   platform - blocking sockets, one platform thread per connection
+ */
+
+public interface NodeServer extends Runnable {
+	String MODE_PROPERTY = "chord.server";
+
+	int getPort();
+
+	void close();
+
+	//Creates the server for the mode selected at startup
+	static NodeServer create(int port, MessageHandler handler) throws IOException {
+		return create(System.getProperty(MODE_PROPERTY, "nio"), port, handler);
+	}
+
+	static NodeServer create(String mode, int port, MessageHandler handler) throws IOException {
+		switch (mode) {
+		case "virtual":
+			return BlockingServer.withVirtualThreads(port, handler);
+		case "platform":
+			return BlockingServer.withPlatformThreads(port, handler);
+		case "nio":
+			return new FrameServer(port, handler);
+		default:
+			throw new IllegalArgumentException("Unknown server mode " + mode + ", expected nio, virtual or platform");
+		}
+	}
+}
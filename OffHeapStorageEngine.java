@@ -0,0 +1,294 @@
+package chord;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Storage engine keeping values outside the Java heap. Values are appended to direct ByteBuffer
+ * slabs and only a small index entry per key stays on the heap, so large value sets do not put
+ * pressure on the garbage collector. Space of overwritten and deleted values is reclaimed by
+ * compacting the live values into fresh slabs once more than half of the written bytes are garbage.
+ */
+
+public class OffHeapStorageEngine implements StorageEngine {
+	public static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+	private int slabSize;
+	private ConcurrentSkipListMap<BigInteger, Location> index;
+	private ArrayList<ByteBuffer> slabs;
+	private long usedBytes;
+	private long garbageBytes;
+	// Reads share the lock; writes and compaction take it exclusively
+	private ReentrantReadWriteLock lock;
+
+	//Where a value lives in the slabs
+	private static class Location {
+		String key;
+		int slab;
+		int offset;
+		int length;
+		long version;
+
+		Location(String key, int slab, int offset, int length, long version) {
+			this.key = key;
+			this.slab = slab;
+			this.offset = offset;
+			this.length = length;
+			this.version = version;
+		}
+	}
+
+	public OffHeapStorageEngine() {
+		this(DEFAULT_SLAB_SIZE);
+	}
+
+	public OffHeapStorageEngine(int slabSize) {
+		this.slabSize = slabSize;
+		index = new ConcurrentSkipListMap<BigInteger, Location>();
+		slabs = new ArrayList<ByteBuffer>();
+		lock = new ReentrantReadWriteLock();
+	}
+
+	@Override
+	public void put(KeyValue entry) {
+		lock.writeLock().lock();
+		try {
+			Location previous = index.put(FingerTable.hash(entry.key), append(entry.key, entry.value, entry.version));
+			if (previous != null) {
+				garbageBytes += previous.length;
+			}
+			compactIfNeeded();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean putIfNewer(KeyValue entry) {
+		lock.writeLock().lock();
+		try {
+			Location stored = index.get(FingerTable.hash(entry.key));
+			if (stored != null && stored.version >= entry.version) {
+				return false;
+			}
+			put(entry);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public byte[] get(String key) {
+		lock.readLock().lock();
+		try {
+			Location location = index.get(FingerTable.hash(key));
+			return location != null && location.key.equals(key) ? read(location) : null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public KeyValue getEntry(String key) {
+		lock.readLock().lock();
+		try {
+			Location location = index.get(FingerTable.hash(key));
+			return location != null && location.key.equals(key) ? new KeyValue(key, read(location), location.version) : null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean delete(String key) {
+		lock.writeLock().lock();
+		try {
+			BigInteger id = FingerTable.hash(key);
+			Location location = index.get(id);
+			if (location == null || !location.key.equals(key)) {
+				return false;
+			}
+			index.remove(id);
+			garbageBytes += location.length;
+			compactIfNeeded();
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean deleteIfOlder(String key, long version) {
+		lock.writeLock().lock();
+		try {
+			Location location = index.get(FingerTable.hash(key));
+			return location != null && location.key.equals(key) && location.version < version && delete(key);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean contains(String key) {
+		lock.readLock().lock();
+		try {
+			Location location = index.get(FingerTable.hash(key));
+			return location != null && location.key.equals(key);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		return index.size();
+	}
+
+	@Override
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			index.clear();
+			slabs.clear();
+			usedBytes = 0;
+			garbageBytes = 0;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public ArrayList<String> keys() {
+		lock.readLock().lock();
+		try {
+			ArrayList<String> keys = new ArrayList<String>(index.size());
+			for (Location location : index.values()) {
+				keys.add(location.key);
+			}
+			return keys;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public ArrayList<KeyValue> entries() {
+		lock.readLock().lock();
+		try {
+			ArrayList<KeyValue> entries = new ArrayList<KeyValue>(index.size());
+			for (Location location : index.values()) {
+				entries.add(entry(location));
+			}
+			return entries;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public ArrayList<KeyValue> range(BigInteger start, BigInteger end) {
+		lock.readLock().lock();
+		try {
+			return RingIndex.range(index, start, end, this::entry);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public ArrayList<KeyValue> extractRange(BigInteger start, BigInteger end) {
+		lock.writeLock().lock();
+		try {
+			ArrayList<KeyValue> extracted = RingIndex.extractRange(index, start, end, this::entry, (id, location) -> {
+				garbageBytes += location.length;
+				index.remove(id, location);
+			});
+			compactIfNeeded();
+			return extracted;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public ArrayList<KeyValue> digest(BigInteger start, BigInteger end, int maxKeys) {
+		lock.readLock().lock();
+		try {
+			return RingIndex.digest(index, start, end, maxKeys,
+					location -> new KeyValue(location.key, EMPTY_VALUE, location.version));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public ArrayList<KeyValue> page(BigInteger start, BigInteger end, int maxBytes) {
+		lock.readLock().lock();
+		try {
+			return RingIndex.page(index, start, end, maxBytes, this::entry);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return keys().iterator();
+	}
+
+	//Bytes held in slabs, live and garbage
+	public long usedBytes() {
+		return usedBytes;
+	}
+
+	//Copies the value to the end of the last slab, starting a new slab when it does not fit.
+	//Values larger than a slab get a slab of their own.
+	private Location append(String key, byte[] value, long version) {
+		ByteBuffer slab = slabs.isEmpty() ? null : slabs.get(slabs.size() - 1);
+		if (slab == null || slab.remaining() < value.length) {
+			slab = ByteBuffer.allocateDirect(Math.max(slabSize, value.length));
+			slabs.add(slab);
+		}
+		Location location = new Location(key, slabs.size() - 1, slab.position(), value.length, version);
+		slab.put(value);
+		usedBytes += value.length;
+		return location;
+	}
+
+	private KeyValue entry(Location location) {
+		return new KeyValue(location.key, read(location), location.version);
+	}
+
+	private byte[] read(Location location) {
+		byte[] value = new byte[location.length];
+		ByteBuffer slab = slabs.get(location.slab).duplicate();
+		slab.position(location.offset);
+		slab.get(value);
+		return value;
+	}
+
+	//Rewrites the live values into new slabs once garbage outweighs them
+	private void compactIfNeeded() {
+		if (usedBytes < slabSize || garbageBytes * 2 < usedBytes) {
+			return;
+		}
+		ArrayList<ByteBuffer> oldSlabs = slabs;
+		slabs = new ArrayList<ByteBuffer>();
+		usedBytes = 0;
+		garbageBytes = 0;
+		for (Map.Entry<BigInteger, Location> entry : index.entrySet()) {
+			Location location = entry.getValue();
+			byte[] value = new byte[location.length];
+			ByteBuffer slab = oldSlabs.get(location.slab).duplicate();
+			slab.position(location.offset);
+			slab.get(value);
+			index.put(entry.getKey(), append(location.key, value, location.version));
+		}
+	}
+}
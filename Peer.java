@@ -1,85 +1,234 @@
+package chord;
+
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.InputMismatchException;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 
 /*
  * @author: Abdul Hakim Shanavas
  * Rochester Institute of Technology
  * 
- * Peer class is the node in the network. This class communicates with LookUp server for joining a network. 
+ * Peer class is the node in the network. A node joins through any node already in the network and
+ * keeps its successor, predecessor and fingers up to date with periodic Chord stabilization. The
+ * LookUp server is only a seed which hands out the nodes known to be online.
  * Besides that, all communication is only between nodes for file insertion, retrieval.  
  */
 
-public class Peer implements Runnable {
-	private ObjectInputStream inputstream;
-	private ObjectOutputStream outputStream;
-	private Socket nodeSocket;
+public class Peer implements MessageHandler {
 	private String host;
-	private int guid;
+	private String name;
+	private BigInteger guid;
 	public boolean isOnline = false;
-	private boolean isFirst = false;
-	private FingerTable fingerTable;
-	private FaultToleranceHandler faultToleranceHandler;
-	private Thread listeningThread;
-	private TreeMap<Integer, InetAddress> liveNodes;
-	private static final int PORT = 5000;
-	private static final int LISTENING_PORT = 8000;
-	private static final int MAX_NODES = 16;
-	private ArrayList<String> files;
-
-	public Peer(int guid, String host) {
-		this.guid = guid;
+	// Replaced as a whole when the node joins again, routing threads read it without a lock
+	private volatile FingerTable fingerTable;
+	// Process hosting this node, which may host other virtual nodes too
+	private PeerProcess process;
+	// Addresses of the nodes this node has heard of, used to open connections to them
+	private ConcurrentHashMap<BigInteger, InetAddress> addresses;
+	private volatile BigInteger predecessor;
+	// Last predecessor known, kept while the predecessor is unknown after a failure
+	private volatile BigInteger lastPredecessor;
+	// The next nodes after this one, closest first. Replaced as a whole, never modified.
+	private volatile ArrayList<BigInteger> successors = new ArrayList<BigInteger>();
+	// The predecessor followed by the nodes before it, closest first, SUCCESSORS + 1 at most.
+	// Refreshed from the predecessor every round. Replaced as a whole, never modified.
+	private volatile ArrayList<BigInteger> predecessors = new ArrayList<BigInteger>();
+	// Set when every successor has failed, so the node joins the ring again
+	private volatile boolean orphaned = false;
+	// Copies kept of every key: the owner and REPLICAS - 1 of its successors, see replicasOf
+	private static final int REPLICAS = Integer.getInteger("chord.replicas", 3);
+	// Length of the successor list. It reaches past the replicas, so that they can be taken from
+	// other processes when the next nodes are virtual nodes of one process.
+	private static final int SUCCESSORS = Math.max(REPLICAS, Integer.getInteger("chord.successors", 2 * REPLICAS));
+	// Node to join through when the LookUp server cannot be reached
+	private String joinHost;
+	private ScheduledExecutorService maintenance;
+	private int nextFinger = 1;
+	private static final long STABILIZE_PERIOD = 500;
+	// Most predecessors a stabilization round walks back through
+	private static final int MAX_STABILIZE_STEPS = 8;
+	public static final String LOOKUP_PROPERTY = "chord.lookup";
+	// Joins at startup and serves requests without the menu, for nodes run by scripts
+	public static final String HEADLESS_PROPERTY = "chord.headless";
+	// Candidates named at each step of an iterative lookup. Only the first is asked, the others
+	// when the ones before them fail.
+	private static final int LOOKUP_CANDIDATES = 2;
+	private static final long LOOKUP_TIMEOUT = 4 * PeerConnection.TIMEOUT;
+	// Fed by the heartbeats sent every maintenance round; suspected nodes are routed around
+	private FailureDetector failureDetector = new FailureDetector(STABILIZE_PERIOD);
+	private static final Histogram LOOKUP_SECONDS = Metrics.histogram("chord_lookup_seconds", "",
+			"Time taken to find the owner of an id", 1e-9);
+	private static final Histogram LOOKUP_HOPS = Metrics.histogram("chord_lookup_hops", "", "Hops taken by lookups", 1);
+	private static final LongAdder LOOKUP_FAILURES = Metrics.counter("chord_lookup_failures_total", "",
+			"Lookups which failed or timed out");
+	private static final LongAdder INSERT_FAILURES = Metrics.counter("chord_insert_failures_total", "",
+			"Files which could not be sent on towards their owner");
+	private static final LongAdder REPLY_FAILURES = Metrics.counter("chord_reply_failures_total", "",
+			"Responses which could not be sent back to the requester");
+	private static final LongAdder JOINS = Metrics.counter("chord_joins_total", "", "Times a node entered the network");
+	private static final LongAdder REJOINS = Metrics.counter("chord_rejoins_total", "",
+			"Times a node joined again after every successor failed");
+	private static final LongAdder NEIGHBOUR_LEAVES = Metrics.counter("chord_neighbour_leaves_total", "",
+			"Leaves announced to a node by its successor or predecessor");
+	private static final LongAdder PARTITION_PULLS = Metrics.counter("chord_partition_pulls_total", "",
+			"Partitions pulled from the successor after a join");
+	private static final LongAdder SEEDS_UNREACHABLE = Metrics.counter("chord_seeds_unreachable_total", "",
+			"Nodes listed by the LookUp server which did not answer a joining node");
+	// Created on first use, by opcode
+	private static final AtomicReferenceArray<Histogram> REQUEST_SECONDS = new AtomicReferenceArray<Histogram>(256);
+	// Owners of recently looked up intervals, so that their keys are sent in one hop
+	private RouteCache routeCache = new RouteCache();
+	// Values of hot keys owned by other nodes, off unless -Dchord.valuecache is set
+	private ValueCache valueCache = new ValueCache();
+	// Nodes caching each key owned by this node, with the time their copy expires
+	private ConcurrentHashMap<String, ConcurrentHashMap<BigInteger, Long>> cacheReaders;
+	private ConnectionPool connectionPool;
+	private StorageEngine storage;
+	// Partitions are handed over in chunks of about this many value bytes
+	private static final int HANDOFF_CHUNK_BYTES = 256 * 1024;
+	// Most keys listed in one digest sent with a handoff request
+	private static final int HANDOFF_DIGEST_KEYS = 1024;
+	private static final int HANDOFF_ATTEMPTS = 3;
+	private static final LongAdder HANDOFF_FAILURES = Metrics.counter("chord_handoff_failures_total", "",
+			"Partition handoffs given up after every attempt failed");
+	// While a joining node pulls its partition, keys after the cursor are still read from the
+	// successor the partition comes from
+	private volatile BigInteger handoffSource;
+	private volatile BigInteger handoffCursor;
+	// Set when a join installs a successor, until this node's keys have been pulled from it. A
+	// pull which does not finish is tried again with the successor of a later round.
+	private volatile boolean partitionPending;
+	// Version clock when this node last entered the network. Keys held here from before then
+	// which are gone at the successor were deleted while the node was away.
+	private volatile long joinedVersion;
+	// Keys deleted here lately with the version of their delete. A copy of a key received from
+	// another node is only stored when it was written after the delete, so a key deleted while
+	// its partition is still being handed over does not come back with the next chunk.
+	private ConcurrentHashMap<String, Long> tombstones = new ConcurrentHashMap<String, Long>();
+	// Tombstones are dropped after this long, but never while a handoff is running
+	private static final long TOMBSTONE_MILLIS = 60000;
+	// Most bytes of keys and values sent to an owner in one batch
+	private static final int BATCH_BYTES = 1024 * 1024;
+	// Threads handing the keys of returned batches to multiGet consumers
+	private static final ExecutorService batchThreads = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "chord-batch");
+		thread.setDaemon(true);
+		return thread;
+	});
+	// Most nodes visited by the distribution report
+	private static final int REPORT_NODES = 4096;
+
+	public Peer(String name, String host) throws IOException {
+		this(name, host, new PeerProcess());
+	}
+
+	public Peer(String name, String host, PeerProcess process) {
+		this.name = name;
+		this.guid = FingerTable.hash(name);
 		this.host = host;
-		files = new ArrayList<String>();
-		listeningThread = new Thread(this);
-		faultToleranceHandler = new FaultToleranceHandler(this);
-		listeningThread.setDaemon(true);
-		listeningThread.start();
+		storage = StorageEngine.create(name);
+		fingerTable = new FingerTable(FingerTable.M, guid);
+		addresses = new ConcurrentHashMap<BigInteger, InetAddress>();
+		addresses.put(guid, InetAddress.getLoopbackAddress());
+		cacheReaders = new ConcurrentHashMap<String, ConcurrentHashMap<BigInteger, Long>>();
+		connectionPool = new ConnectionPool(process.transport(), PeerProcess.LISTENING_PORT, addresses::get, process);
+		this.process = process;
+		process.add(this);
+		Metrics.gauge("chord_node_keys", "node=\"" + FingerTable.shortId(guid) + "\"", "Keys stored by each node, replicas included",
+				() -> storage.size());
+	}
+
+	public BigInteger getGuid() {
+		return guid;
+	}
+
+	//Immediate successor of this node, the node itself when it is alone
+	public BigInteger getSuccessor() {
+		return fingerTable.successor();
 	}
 
-	public static void main(String[] args) throws ClassNotFoundException {
+	public static void main(String[] args) throws InterruptedException, IOException {
 		// Check for command line arguments
 		if (args.length < 2) {
-			System.out.println("Please provide guid and network host");
+			System.out.println("Please provide node name and network host, optionally followed by a node to join through");
 			System.exit(11);
 		}
-		int id = Integer.parseInt(args[0]);
-		if (id < 0 || id > 15) {
-			System.out.println("Please give node id between 0 and 15 inclusive");
-			System.exit(11);
+		// Node id is the SHA-1 hash of the node name, so any name can be used. A process with more
+		// capacity hosts more virtual nodes, named after the node with a #index suffix
+		PeerProcess process = new PeerProcess();
+		Metrics.export();
+		int count = PeerProcess.virtualNodeCount();
+		for (int i = 0; i < count; i++) {
+			Peer node = new Peer(PeerProcess.virtualNodeName(args[0], i, count), args[1], process);
+			if (args.length > 2) {
+				node.joinHost = args[2];
+			}
 		}
-		Peer node = new Peer(id, args[1]);
 		// Handling fault tolerance. This will get triggered when the JVM exists
 		// unexpectedly ( Eg.: Ctrl-C )
-		Runtime.getRuntime().addShutdownHook(node.faultToleranceHandler);
-		// Main menu
-		menu(node);
+		Runtime.getRuntime().addShutdownHook(new FaultToleranceHandler(process));
+		if (Boolean.getBoolean(HEADLESS_PROPERTY)) {
+			for (Peer node : process.nodes()) {
+				try {
+					node.enterNetwork();
+				} catch (IOException e) {
+					System.err.println("Error: " + e.getMessage());
+					System.exit(1);
+				}
+			}
+		} else {
+			// Main menu, requests are made through the first virtual node
+			menu(process.nodes().get(0));
+		}
+		// Server threads are daemons, the node runs until the process is stopped
+		Thread.currentThread().join();
 	}
 
+	//Interactive menu reading commands from the console until it is closed
 	public static void menu(Peer node) {
+		Scanner scan = new Scanner(System.in);
 		while (true) {
 			System.out.println("********************** MENU BEGIN ************************");
-			System.out.println("GUID : " + node.guid);
+			System.out.println("GUID : " + node.name + " (" + FingerTable.shortId(node.guid) + ")");
 			System.out.println("\t\t"
-					+ "1. Join the network \n \t\t2. Leave the network \n \t\t3. Insert file \n \t\t4. Search file \n \t\t5. Show finger table \n \t\t6. Show files in this machine");
+					+ "1. Join the network \n \t\t2. Leave the network \n \t\t3. Insert file \n \t\t4. Search file \n \t\t5. Show finger table \n \t\t6. Show files in this machine"
+					+ " \n \t\t7. Put value \n \t\t8. Get value \n \t\t9. Delete key \n \t\t10. Show key distribution");
 			System.out.println("********************** MENU END ************************");
-			Scanner scan = new Scanner(System.in);
 			try {
 				switch (scan.nextInt()) {
 				case 1:
-					// Join network only if the node is offline.
+					// Join network only if the node is offline. Every virtual node of the process joins.
 					if (!node.isOnline) {
-						node.enterNetwork();
+						for (Peer virtualNode : node.process.nodes()) {
+							virtualNode.enterNetwork();
+						}
+						System.out.println("Joined the network, successor " + FingerTable.shortId(node.getSuccessor()));
 					} else {
 						System.out.println("Node is already online");
 					}
@@ -88,10 +237,11 @@ public class Peer implements Runnable {
 				case 2:
 					// Leave network only when the node is already online
 					if (node.isOnline) {
-						node.leaveNetwork();
-						node.isOnline = false;
+						for (Peer virtualNode : node.process.nodes()) {
+							virtualNode.leaveNetwork();
+							virtualNode.isOnline = false;
+						}
 						System.out.println("Left the network");
-						node.files.clear();
 					} else {
 						System.out.println("Node is already offline");
 					}
@@ -101,9 +251,13 @@ public class Peer implements Runnable {
 					if (node.isOnline) {
 						System.out.println("Please enter file name");
 						String file = scan.next();
-						int idToBeInserted = Math.abs(file.hashCode() % MAX_NODES);
-						System.out.println("File id: " + idToBeInserted);
+						BigInteger idToBeInserted = FingerTable.hash(file);
+						System.out.println("File id: " + FingerTable.shortId(idToBeInserted));
+						if (node.isResponsibleFor(idToBeInserted)) {
+							idToBeInserted = node.guid;
+						}
 						node.insertFileAtID(idToBeInserted, file);
+						System.out.println("File : " + file + " sent for insertion");
 					} else {
 						System.out.println("Node is offline! Must be online to insert file");
 					}
@@ -114,18 +268,17 @@ public class Peer implements Runnable {
 						System.out.println("Please enter file name");
 						String searchFile = scan.next();
 						// Checking for files in the local machine
-						if (node.files.contains(searchFile)) {
-							System.out.println("File " + searchFile + " found at " + node.guid);
+						if (node.storage.contains(searchFile)) {
+							System.out.println("File " + searchFile + " found at " + node.name);
 						} else {
-							// If the file supposed to be in the local machine but it is not found, then
-							// display file not found
-							int lookUpID = Math.abs(searchFile.hashCode() % MAX_NODES);
-							if (lookUpID == node.guid) {
-								System.err.println("Error: File not found!");
+							// Otherwise look up the file's owner and ask it directly
+							System.out.println("File id: " + FingerTable.shortId(FingerTable.hash(searchFile)) + " for lookup");
+							NodeRef owner = await(node.lookup(searchFile));
+							System.out.println("Owner: " + owner);
+							if (node.queryFile(searchFile)) {
+								System.out.println("File : " + searchFile + " found at : " + FingerTable.shortId(owner.id));
 							} else {
-								System.out.println("File id: " + lookUpID + " for lookup");
-								InetAddress sourceAddress = InetAddress.getLocalHost();
-								node.searchFile(sourceAddress, lookUpID, searchFile);
+								System.err.println("Error: File not found!");
 							}
 						}
 					} else {
@@ -136,7 +289,10 @@ public class Peer implements Runnable {
 					// Prints the finger table
 					System.out.println("Printing finger table");
 					if (node.isOnline) {
-						node.fingerTable.printFingerTable();
+						for (Peer virtualNode : node.process.nodes()) {
+							System.out.println(virtualNode.name + " (" + FingerTable.shortId(virtualNode.guid) + ")");
+							virtualNode.fingerTable.printFingerTable();
+						}
 					} else {
 						System.err.println("Node is offline");
 					}
@@ -144,426 +300,1941 @@ public class Peer implements Runnable {
 				case 6:
 					// Shows the file present in the local machine
 					System.out.println("********************** FILES ************************");
-					if (node.files.size() == 0) {
+					int files = 0;
+					for (Peer virtualNode : node.process.nodes()) {
+						files += virtualNode.storage.size();
+					}
+					if (files == 0) {
 						System.out.println("No files in this machine!");
 					} else {
-						System.out.println("There are " + node.files.size() + " files in this machine");
-						for (String fileName : node.files) {
-							System.out.println("\t\t" + fileName);
+						System.out.println("There are " + files + " files in this machine");
+						for (Peer virtualNode : node.process.nodes()) {
+							for (KeyValue entry : virtualNode.storage.entries()) {
+								System.out.println("\t\t" + entry.key + "\t" + entry.value.length + " bytes");
+							}
 						}
 					}
 					System.out.println("********************** FILES END ************************");
+					break;
+				case 7:
+					// Stores a value under a key at the key's owner
+					if (node.isOnline) {
+						System.out.println("Please enter key and value");
+						String key = scan.next();
+						String value = scan.nextLine().trim();
+						node.put(key, value.getBytes(StandardCharsets.UTF_8));
+						System.out.println("Stored " + key);
+					} else {
+						System.out.println("Node is offline! Must be online to put values");
+					}
+					break;
+				case 8:
+					// Reads the value of a key from the key's owner
+					if (node.isOnline) {
+						System.out.println("Please enter key");
+						String key = scan.next();
+						byte[] value = node.get(key);
+						if (value == null) {
+							System.err.println("Error: Key not found!");
+						} else {
+							System.out.println(key + " = " + new String(value, StandardCharsets.UTF_8));
+						}
+					} else {
+						System.out.println("Node is offline! Cannot connect to network!");
+					}
+					break;
+				case 9:
+					// Deletes a key at the key's owner
+					if (node.isOnline) {
+						System.out.println("Please enter key");
+						String key = scan.next();
+						System.out.println(node.delete(key) ? "Deleted " + key : "Key " + key + " not found");
+					} else {
+						System.out.println("Node is offline! Cannot connect to network!");
+					}
+					break;
+				case 10:
+					// Shows how the ring and its keys are spread over the nodes
+					if (node.isOnline) {
+						node.printDistribution();
+					} else {
+						System.out.println("Node is offline! Cannot connect to network!");
+					}
+					break;
 				}
 
 			} catch (InputMismatchException e) {
 				System.err.println("Invalid input");
+				scan.nextLine();
+			} catch (NoSuchElementException e) {
+				// Console closed; the node keeps serving when run in the background
+				System.out.println("No more input, running without the menu");
+				return;
 
-			} catch (UnknownHostException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+			} catch (IOException e) {
+				System.err.println("Error: " + e.getMessage());
 			} finally {
 
 			}
 		}
 	}
 
-	// Connects to LookUp server
-	public void connect() {
+	// Sends a request to the LookUp server over a connection of its own. Returns null when the
+	// server cannot be reached, the server is only needed to find a node to join through.
+	private Message requestSeed(Message request) {
+		RequestConnection connection = null;
 		try {
-			InetAddress serverIP = InetAddress.getByName(host);
-			nodeSocket = new Socket(serverIP, PORT);
-			inputstream = new ObjectInputStream(nodeSocket.getInputStream());
-			outputStream = new ObjectOutputStream(nodeSocket.getOutputStream());
-		} catch (UnknownHostException e) {
-			e.printStackTrace();
+			connection = process.transport().connect(InetAddress.getByName(host), PeerProcess.SEED_PORT, process);
+			return await(connection.request(request));
 		} catch (IOException e) {
-			e.printStackTrace();
+			Tracer.event(guid, request.opcode, "LookUp server unavailable: " + e.getMessage());
+			return null;
+		} finally {
+			if (connection != null) {
+				connection.close();
+			}
 		}
 	}
 
-	// Close the connection between node and the LookUp server
-	public void closeConnection() {
+	// Waits for the response of a request sent to another node or the server
+	private static <T> T await(CompletableFuture<T> response) throws IOException {
 		try {
-			outputStream.close();
-			inputstream.close();
-			nodeSocket.close();
-		} catch (IOException e) {
-			System.err.println("Connection Error");
-			System.exit(1);
+			return response.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a response");
+		} catch (ExecutionException e) {
+			throw new IOException("Request failed: " + e.getCause().getMessage(), e.getCause());
 		}
 	}
 
-	// Connect to server and go online
-	public void enterNetwork() {
+	// Same as await, giving up after the timeout
+	private static <T> T await(CompletableFuture<T> response, long timeoutMillis) throws IOException {
 		try {
-			connect();
-			outputStream.writeObject("Joining");
-			outputStream.writeObject(guid);
-			String response = (String) inputstream.readObject();
-			System.out.println(response);
-			if(!response.equalsIgnoreCase(guid + " is already in use!")) {
-				System.out.println("Joined the network");
-				System.out.println("Waiting for livenodes list");
-				isOnline = true;
-				isFirst = true;
+			return response.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a response");
+		} catch (ExecutionException e) {
+			throw new IOException("Request failed: " + e.getCause().getMessage(), e.getCause());
+		} catch (TimeoutException e) {
+			throw new IOException("No response within " + timeoutMillis + " ms");
+		}
+	}
+
+	// Join the network through a node already in it. The node is taken from the LookUp server's
+	// list, or from the command line when the server cannot be reached. Only a node given no
+	// other node to join through forms a ring of its own; when every node it was given fails to
+	// answer, the join fails rather than leaving this node in a ring apart from the others.
+	public void enterNetwork() throws IOException {
+		LinkedHashMap<InetAddress, BigInteger> bootstrap = new LinkedHashMap<InetAddress, BigInteger>();
+		Message reply = requestSeed(new Message(Message.JOIN, guid));
+		if (reply != null) {
+			@SuppressWarnings("unchecked")
+			TreeMap<BigInteger, InetAddress> seeds = (TreeMap<BigInteger, InetAddress>) reply.get(1);
+			for (Map.Entry<BigInteger, InetAddress> seed : seeds.entrySet()) {
+				if (!seed.getKey().equals(guid)) {
+					bootstrap.putIfAbsent(seed.getValue(), seed.getKey());
+				}
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (ClassNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		} else if (joinHost != null) {
+			bootstrap.put(InetAddress.getByName(joinHost), null);
+		} else {
+			throw new IOException("No node to join through: the LookUp server cannot be reached and no node was given");
+		}
+		predecessor = null;
+		lastPredecessor = null;
+		successors = new ArrayList<BigInteger>();
+		fingerTable = new FingerTable(FingerTable.M, guid);
+		joinedVersion = KeyValue.nextVersion();
+		if (!bootstrap.isEmpty() && !joinThroughAny(bootstrap)) {
+			if (reply != null) {
+				requestSeed(new Message(Message.LEAVE, guid));
+			}
+			throw new IOException("None of the " + bootstrap.size() + " nodes to join through answered");
+		}
+		isOnline = true;
+		JOINS.increment();
+		Tracer.event(guid, Message.JOIN, "joined the network, successor " + FingerTable.shortId(fingerTable.successor()));
+		maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "chord-maintenance");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// Tell the successor about this node right away so it stops taking keys that are now
+		// owned here, then pull them
+		stabilize();
+		maintenance.scheduleWithFixedDelay(this::runMaintenance, STABILIZE_PERIOD, STABILIZE_PERIOD,
+				TimeUnit.MILLISECONDS);
+		getFilesFromSuccessor();
+	}
+
+	// Joins through the first of the addresses which answers. The LookUp server is then told of
+	// the listed nodes which did not, so that later joins do not wait for them. Nothing is told
+	// when no node answers, as this node may be the one cut off.
+	private boolean joinThroughAny(Map<InetAddress, BigInteger> bootstrap) {
+		TreeMap<BigInteger, InetAddress> unreachable = new TreeMap<BigInteger, InetAddress>();
+		for (Map.Entry<InetAddress, BigInteger> seed : bootstrap.entrySet()) {
+			try {
+				joinThrough(seed.getKey());
+				reportUnreachable(unreachable);
+				return true;
+			} catch (IOException e) {
+				Tracer.event(guid, Message.JOIN, "cannot join through " + seed.getKey() + ": " + e.getMessage());
+				if (seed.getValue() != null) {
+					unreachable.put(seed.getValue(), seed.getKey());
+				}
+			}
+		}
+		return false;
+	}
+
+	// Tells the LookUp server of listed nodes which did not answer, by id with the address
+	// they were tried at
+	private void reportUnreachable(TreeMap<BigInteger, InetAddress> unreachable) {
+		if (!unreachable.isEmpty()) {
+			SEEDS_UNREACHABLE.add(unreachable.size());
+			requestSeed(new Message(Message.UNREACHABLE, unreachable));
+		}
+	}
+
+	// Joins again once every successor has failed, through the live nodes the LookUp server
+	// knows of. Without it a node whose successors all failed before it learnt of any other
+	// node would stay in a ring of its own. The first of the listed nodes after this one which
+	// answers becomes the successor, and stabilization finds any node which joined in between.
+	// A lookup would not do: the rest of the ring may still route this node's id to it.
+	@SuppressWarnings("unchecked")
+	private void rejoin() {
+		Message reply = requestSeed(new Message(Message.LIVE_NODES));
+		if (reply == null) {
+			return;
+		}
+		TreeMap<BigInteger, InetAddress> seeds = (TreeMap<BigInteger, InetAddress>) reply.get(0);
+		ArrayList<BigInteger> nodes = new ArrayList<BigInteger>(seeds.keySet());
+		nodes.remove(guid);
+		nodes.sort((a, b) -> RingMath.distance(guid, a).compareTo(RingMath.distance(guid, b)));
+		TreeMap<BigInteger, InetAddress> unreachable = new TreeMap<BigInteger, InetAddress>();
+		for (BigInteger node : nodes) {
+			addresses.put(node, seeds.get(node));
+			try {
+				await(connectionPool.get(node).request(new Message(Message.PING)));
+				updateSuccessors(node, null);
+				partitionPending = true;
+				REJOINS.increment();
+				Tracer.event(guid, Message.JOIN, "joined again, successor " + FingerTable.shortId(node));
+				reportUnreachable(unreachable);
+				return;
+			} catch (IOException e) {
+				connectionPool.remove(node);
+				unreachable.put(node, seeds.get(node));
+			}
+		}
+	}
+
+
+	// Asks the node at the address for the successor of this node's id. The keys this node owns
+	// are then pulled from that successor, see pullPendingPartition.
+	private void joinThrough(InetAddress address) throws IOException {
+		RequestConnection connection = process.transport().connect(address, PeerProcess.LISTENING_PORT, process);
+		try {
+			Message reply = await(connection.request(new Message(Message.FIND_SUCCESSOR, guid)));
+			if (reply.payload.length > 4) {
+				throw new IOException((String) reply.get(4));
+			}
+			updateSuccessors(learn(reply, 0, address), null);
+			partitionPending = true;
 		} finally {
-			closeConnection();
+			connection.close();
 		}
 	}
 
-	// Connect to server and go offline. Also send all the files in the system to
-	// the immediate successor.
+	// Leave the network. All the files in the system are sent to the immediate successor, and
+	// the successor and predecessor are told about each other.
 	public void leaveNetwork() {
+		if (maintenance != null) {
+			maintenance.shutdownNow();
+		}
 		try {
-			connect();
-			outputStream.writeObject("Going offline");
-			outputStream.writeObject(guid);
-			int id = fingerTable.firstActualNode;
-			int successor = fingerTable.successorTable.get(id);
-			transferFileToNode(successor, successor, "", false);
-
+			BigInteger successor = fingerTable.successor();
+			if (!successor.equals(guid)) {
+				try {
+					handOffAll(successor);
+				} catch (IOException e) {
+					// The successor still holds a replica of every key, so the leave goes on
+					HANDOFF_FAILURES.increment();
+					System.err.println("Cannot hand keys over to " + FingerTable.shortId(successor) + ": " + e.getMessage());
+				}
+				Message leave = new Message(Message.LEAVE, guid, predecessor, addressOf(predecessor), successor,
+						addressOf(successor));
+				connectionPool.get(successor).send(leave);
+				BigInteger predecessor = this.predecessor;
+				if (predecessor != null && !predecessor.equals(successor)) {
+					connectionPool.get(predecessor).send(leave);
+				}
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		} finally {
-			closeConnection();
+			requestSeed(new Message(Message.LEAVE, guid));
+			connectionPool.closeAll();
 		}
 	}
 
 	// Transfer files to immediate successor when node shuts down unexpectedly
-	public void FaultToleranceLeaveNetwork(int successor) {
+	public void FaultToleranceLeaveNetwork() {
+		leaveNetwork();
+	}
+
+	// Records the address of the node in the given field of a message and the one after it.
+	// Nodes send a null address for themselves, which is then the address they were reached at.
+	private BigInteger learn(Message message, int field, InetAddress via) {
+		BigInteger nodeId = (BigInteger) message.get(field);
+		InetAddress address = (InetAddress) message.get(field + 1);
+		if (address == null) {
+			address = via;
+		}
+		if (nodeId != null && address != null && !nodeId.equals(guid)) {
+			addresses.put(nodeId, address);
+		}
+		return nodeId;
+	}
+
+	// Address to send for a node; null for this node itself, see learn
+	private InetAddress addressOf(BigInteger nodeId) {
+		return nodeId == null || nodeId.equals(guid) ? null : addresses.get(nodeId);
+	}
+
+	// Finds the node owning the key, the successor of its id. Owners of recently looked up
+	// intervals are taken from the route cache. Iterative lookups are used unless
+	// -Dchord.lookup=recursive.
+	public CompletableFuture<NodeRef> lookup(String key) {
+		return lookup(key, Tracer.newTrace());
+	}
+
+	// Same as lookup, on behalf of the traced operation
+	private CompletableFuture<NodeRef> lookup(String key, long traceId) {
+		BigInteger id = FingerTable.hash(key);
+		NodeRef cached = routeCache.get(id);
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
+		}
+		return resolve(id, traceId);
+	}
+
+	// Looks up the owner of the id, skipping the route cache, and caches the owner's interval
+	private CompletableFuture<NodeRef> resolve(BigInteger id, long traceId) {
+		return lookup(id, !"recursive".equals(System.getProperty(LOOKUP_PROPERTY)), traceId).thenApply(owner -> {
+			routeCache.put(owner);
+			return owner;
+		});
+	}
+
+	// Finds the successor of the id. An iterative lookup asks each next hop itself, the nodes
+	// only answer with their closest preceding fingers; a recursive lookup hands the request to
+	// the next hop, which forwards it on. Either way the whole lookup gives up after the
+	// lookup timeout and the result reports the time taken by every hop.
+	public CompletableFuture<NodeRef> lookup(BigInteger id, boolean iterative) {
+		return lookup(id, iterative, Tracer.newTrace());
+	}
+
+	// Same as lookup, on behalf of the traced operation. Time taken and hops are recorded in
+	// the metrics.
+	private CompletableFuture<NodeRef> lookup(BigInteger id, boolean iterative, long traceId) {
+		long start = System.nanoTime();
+		CompletableFuture<NodeRef> result = iterative
+				? iterate(id, guid, localStep(id), new ArrayList<Long>(), 0, traceId)
+				: findSuccessor(id, traceId);
+		return result.orTimeout(LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS).whenComplete((owner, error) -> {
+			if (error != null) {
+				LOOKUP_FAILURES.increment();
+				return;
+			}
+			long nanos = System.nanoTime() - start;
+			LOOKUP_SECONDS.record(nanos);
+			LOOKUP_HOPS.record(owner.hops());
+			if (traceId != 0) {
+				Tracer.record(traceId, guid, iterative ? Message.CLOSEST_PRECEDING : Message.FIND_SUCCESSOR,
+						"looked up " + FingerTable.shortId(id) + ": " + owner);
+			}
+		});
+	}
+
+	// Finds the successor of the id, the node owning it. The request is forwarded to the
+	// closest preceding finger until it reaches the node whose successor follows the id.
+	public CompletableFuture<NodeRef> findSuccessor(BigInteger id) {
+		return findSuccessor(id, 0);
+	}
+
+	private CompletableFuture<NodeRef> findSuccessor(BigInteger id, long traceId) {
+		BigInteger successor = liveSuccessor();
+		if (successor.equals(guid) || checkBetweenNodes(guid, successor, id)) {
+			NodeRef found = new NodeRef(successor, addresses.get(successor));
+			found.rangeStart = successor.equals(guid) ? null : guid;
+			return CompletableFuture.completedFuture(found);
+		}
+		BigInteger next = closestPrecedingNode(id);
+		if (next.equals(guid)) {
+			next = successor;
+		}
+		InetAddress via = addresses.get(next);
+		long start = System.nanoTime();
 		try {
-			connect();
-			outputStream.writeObject("Going offline");
-			outputStream.writeObject(guid);
-			transferFileToNode(successor, successor, "", false);
+			Message request = new Message(Message.FIND_SUCCESSOR, id);
+			request.traceId = traceId;
+			if (traceId != 0) {
+				Tracer.record(traceId, guid, Message.FIND_SUCCESSOR, "forwarded to " + FingerTable.shortId(next));
+			}
+			return connectionPool.get(next).request(request)
+					.thenApply(reply -> {
+						if (reply.payload.length > 4) {
+							throw new IllegalStateException((String) reply.get(4));
+						}
+						BigInteger node = learn(reply, 0, via);
+						NodeRef found = new NodeRef(node, addresses.get(node));
+						found.rangeStart = (BigInteger) reply.get(3);
+						// Time spent on this hop is the round trip less the hops after it
+						long downstream = 0;
+						for (long nanos : (long[]) reply.get(2)) {
+							found.hopNanos.add(nanos);
+							downstream += nanos;
+						}
+						found.hopNanos.add(0, System.nanoTime() - start - downstream);
+						return found;
+					});
+		} catch (IOException e) {
+			CompletableFuture<NodeRef> failed = new CompletableFuture<NodeRef>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
 
+	// What this node knows about the successor of the id: the successor itself, marked as
+	// found, or the closest preceding fingers to ask next. Answers CLOSEST_PRECEDING requests.
+	private Message localStep(BigInteger id) {
+		BigInteger successor = liveSuccessor();
+		TreeMap<BigInteger, InetAddress> nodes = new TreeMap<BigInteger, InetAddress>();
+		boolean found = successor.equals(guid) || checkBetweenNodes(guid, successor, id);
+		ArrayList<BigInteger> candidates = new ArrayList<BigInteger>();
+		if (found) {
+			candidates.add(successor);
+		} else {
+			candidates = fingerTable.closestPrecedingNodes(id, LOOKUP_CANDIDATES, failureDetector::isSuspected);
+			if (candidates.isEmpty()) {
+				candidates.add(successor);
+			}
+		}
+		// This node itself is left out; an empty found answer means the node which sent it
+		for (BigInteger node : candidates) {
+			InetAddress address = addresses.get(node);
+			if (!node.equals(guid) && address != null) {
+				nodes.put(node, address);
+			}
+		}
+		return new Message(Message.CLOSEST_PRECEDING, found, nodes);
+	}
+
+	// One step of an iterative lookup. The candidate closest to the id is asked, and the next
+	// one only when it fails or times out, so each hop costs one request. The candidates of the
+	// answer are asked at the next step. The node which gave the answer precedes the successor
+	// it found.
+	@SuppressWarnings("unchecked")
+	private CompletableFuture<NodeRef> iterate(BigInteger id, BigInteger answeredBy, Message step, ArrayList<Long> hops,
+			int hopCount, long traceId) {
+		TreeMap<BigInteger, InetAddress> nodes = (TreeMap<BigInteger, InetAddress>) step.get(1);
+		if ((Boolean) step.get(0)) {
+			NodeRef found = nodes.isEmpty() ? new NodeRef(guid, addresses.get(guid))
+					: new NodeRef(nodes.firstKey(), nodes.firstEntry().getValue());
+			found.rangeStart = nodes.isEmpty() ? null : answeredBy;
+			found.hopNanos = hops;
+			return CompletableFuture.completedFuture(found);
+		}
+		if (nodes.isEmpty() || hopCount >= FingerTable.M) {
+			CompletableFuture<NodeRef> failed = new CompletableFuture<NodeRef>();
+			failed.completeExceptionally(new IOException("Lookup of " + FingerTable.shortId(id) + " found no route"));
+			return failed;
+		}
+		ArrayList<BigInteger> candidates = new ArrayList<BigInteger>(nodes.keySet());
+		candidates.sort((a, b) -> RingMath.distance(a, id).compareTo(RingMath.distance(b, id)));
+		return ask(id, candidates, nodes, 0, hops, hopCount, traceId);
+	}
+
+	// Asks the candidate at the index for its step towards the id, falling back to the ones
+	// after it while they fail
+	@SuppressWarnings("unchecked")
+	private CompletableFuture<NodeRef> ask(BigInteger id, ArrayList<BigInteger> candidates,
+			TreeMap<BigInteger, InetAddress> nodes, int index, ArrayList<Long> hops, int hopCount, long traceId) {
+		BigInteger node = candidates.get(index);
+		InetAddress via = nodes.get(node);
+		addresses.putIfAbsent(node, via);
+		long start = System.nanoTime();
+		CompletableFuture<Message> reply;
+		try {
+			Message request = new Message(Message.CLOSEST_PRECEDING, id);
+			request.traceId = traceId;
+			reply = connectionPool.get(node).request(request);
 		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			closeConnection();
+			reply = new CompletableFuture<Message>();
+			reply.completeExceptionally(e);
 		}
+		return reply.handle((answer, error) -> {
+			if (error != null) {
+				if (index + 1 == candidates.size()) {
+					CompletableFuture<NodeRef> failed = new CompletableFuture<NodeRef>();
+					failed.completeExceptionally(error);
+					return failed;
+				}
+				return ask(id, candidates, nodes, index + 1, hops, hopCount, traceId);
+			}
+			ArrayList<Long> taken = new ArrayList<Long>(hops);
+			taken.add(System.nanoTime() - start);
+			TreeMap<BigInteger, InetAddress> answerNodes = (TreeMap<BigInteger, InetAddress>) answer.get(1);
+			if ((Boolean) answer.get(0) && answerNodes.isEmpty()) {
+				// The node answering is the successor
+				NodeRef found = new NodeRef(node, via);
+				found.hopNanos = taken;
+				return CompletableFuture.completedFuture(found);
+			}
+			return iterate(id, node, answer, taken, hopCount + 1, traceId);
+		}).thenCompose(next -> next);
 	}
 
-	// Constructs the finger table based on the live nodes in the network
-	public void constructFingerTable() {
-		fingerTable = new FingerTable(4, guid);
-		fingerTable.constructFingerTable(liveNodes);
+	// One round of the periodic maintenance. Errors are caught so the schedule keeps running.
+	private void runMaintenance() {
+		try {
+			failureDetector.updateSuspects();
+			sendHeartbeats();
+			stabilize();
+			pullPendingPartition();
+			fixFingers();
+			checkPredecessor();
+			updatePredecessors();
+			expireCacheReaders();
+			expireTombstones();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
 	}
 
-	// Search file based in the network and send the source address for the node
-	// which has file to directly connect and return the file
-	public void searchFile(InetAddress sourceAddress, int id, String file) {
+	// Asks the successor for its predecessor and adopts it when it sits between the two, then
+	// tells the successor about this node. The successor's own successor list, less its last
+	// entry, becomes the rest of this node's list. A successor which does not answer is dropped
+	// and the next one on the list takes its place; once none is left the node joins again.
+	@SuppressWarnings("unchecked")
+	private void stabilize() {
+		BigInteger successor = fingerTable.successor();
+		if (!successor.equals(guid) && failureDetector.isSuspected(successor)) {
+			Tracer.event(guid, Message.PING, "successor " + FingerTable.shortId(successor) + " suspected to have failed");
+			nodeGone(successor);
+			successor = fingerTable.successor();
+		}
+		if (orphaned && successor.equals(guid)) {
+			rejoin();
+			successor = fingerTable.successor();
+		}
 		try {
-			boolean isNodeAvailable = fingerTable.successorTable.containsKey(id);
-			// First checks the file's owner in the finger table. If the node in the finger
-			// table is supposed to have the file, then query to it's successor for file.
-			if (isNodeAvailable) {
-				int successorId = fingerTable.successorTable.get(id);
-				queryNodeForFile(sourceAddress, successorId, file, successorId);
+			BigInteger candidate;
+			TreeMap<BigInteger, InetAddress> next = null;
+			if (successor.equals(guid)) {
+				// An orphaned node which could not join again waits for the next round. Its
+				// predecessor comes before it, and taking it as the successor would close a loop
+				// apart from the rest of the ring.
+				candidate = orphaned ? null : predecessor;
 			} else {
-				// If the node is not in the finger table, query the closest node for the file
-				// which will in turn check it's finger table and send query to the actual
-				// successor
-				int sourceID;
-				int minDistance = Integer.MAX_VALUE;
-				TreeMap<Integer, Integer> nodesDistance = new TreeMap<Integer, Integer>();
-				for (Map.Entry<Integer, Integer> entry : fingerTable.successorTable.entrySet()) {
-					sourceID = entry.getKey();
-					int distance = distanceBetweenNodes(sourceID, id);
-					minDistance = Math.min(minDistance, distance);
-					nodesDistance.put(distance, sourceID);
-				}
-				int idToSend = nodesDistance.get(minDistance);
-				int successorId = fingerTable.successorTable.get(idToSend);
-				// If the node to be searched is between the actual and successor node then
-				// query the successor for the file, else query the successor to query the
-				// actual node which has the file.
-				if (checkBetweenNodes(idToSend, successorId, id)) {
-					queryNodeForFile(sourceAddress, successorId, file, successorId);
-				} else {
-					queryNodeForFile(sourceAddress, successorId, file, id);
+				Message reply = await(connectionPool.get(successor).request(new Message(Message.GET_PREDECESSOR)));
+				candidate = learn(reply, 0, addresses.get(successor));
+				next = (TreeMap<BigInteger, InetAddress>) reply.get(2);
+			}
+			// Nodes which joined the same interval at about the same time each point past the
+			// others at first. Walking back along the predecessors links them in one round rather
+			// than one node per round.
+			for (int step = 1; candidate != null && RingMath.inOpen(guid, successor, candidate); step++) {
+				// The old successor and its list stay behind the new one, in case it fails
+				if (next == null) {
+					next = new TreeMap<BigInteger, InetAddress>();
+				}
+				if (!successor.equals(guid)) {
+					next.put(successor, addresses.get(successor));
+				}
+				successor = candidate;
+				candidate = null;
+				if (step < MAX_STABILIZE_STEPS) {
+					try {
+						Message reply = await(connectionPool.get(successor).request(new Message(Message.GET_PREDECESSOR)));
+						candidate = learn(reply, 0, addresses.get(successor));
+						next.putAll((TreeMap<BigInteger, InetAddress>) reply.get(2));
+					} catch (IOException e) {
+						// Adopted all the same; the next round drops it if it has failed
+					}
 				}
 			}
-		} finally {
+			updateSuccessors(successor, next);
+			if (!successor.equals(guid)) {
+				connectionPool.get(successor).send(new Message(Message.NOTIFY, guid));
+			}
+		} catch (IOException e) {
+			Tracer.event(guid, Message.NOTIFY, "successor " + FingerTable.shortId(successor) + " unreachable: " + e.getMessage());
+			nodeGone(successor);
+		}
+	}
 
+	// Sets the successor list to the successor followed by the nodes after it, given by id and
+	// address in any order. Nodes which become replicas get a copy of the keys this node owns.
+	private void updateSuccessors(BigInteger successor, TreeMap<BigInteger, InetAddress> next) {
+		ArrayList<BigInteger> list = new ArrayList<BigInteger>();
+		if (!successor.equals(guid)) {
+			list.add(successor);
+		}
+		if (next != null && !list.isEmpty()) {
+			ArrayList<BigInteger> after = new ArrayList<BigInteger>(next.keySet());
+			after.sort((a, b) -> RingMath.distance(successor, a).compareTo(RingMath.distance(successor, b)));
+			for (BigInteger node : after) {
+				if (list.size() >= SUCCESSORS || node.equals(guid)) {
+					break;
+				}
+				if (!list.contains(node)) {
+					addresses.put(node, next.get(node));
+					list.add(node);
+				}
+			}
+		}
+		ArrayList<BigInteger> previous = successors;
+		successors = list;
+		if (!list.isEmpty()) {
+			orphaned = false;
 		}
+		fingerTable.setFinger(0, list.isEmpty() ? guid : list.get(0));
+		if (!(list.isEmpty() ? guid : list.get(0)).equals(previous.isEmpty() ? guid : previous.get(0))) {
+			// A new successor splits or takes over the interval after this node
+			routeCache.invalidate(guid);
+		}
+		replicateToNewReplicas(previous, list);
+	}
+
+	// Copies the keys this node owns to the nodes which became replicas with the new successor
+	// list
+	private void replicateToNewReplicas(ArrayList<BigInteger> previous, ArrayList<BigInteger> list) {
+		List<BigInteger> replicas = replicasOf(guid, previous);
+		for (BigInteger node : replicasOf(guid, list)) {
+			if (!replicas.contains(node)) {
+				CompletableFuture.runAsync(() -> replicateOwnedKeys(node));
+			}
+		}
+	}
+
+	// Successors holding a copy of this node's keys
+	private List<BigInteger> replicaNodes() {
+		return replicasOf(guid, successors);
 	}
 
-	//Method which is responsible for querying the nodes in the network for searching a file
-	public void queryNodeForFile(InetAddress sourceAddress, int successorId, String file, int fileID) {
+	// Replicas of the owner's keys among the nodes after it, closest first. Each one is taken
+	// from a process other than the owner's and the other replicas', so that one process
+	// crashing does not take every copy with it. Virtual nodes of a process already holding a
+	// copy are only taken when too few processes follow the owner.
+	private List<BigInteger> replicasOf(BigInteger owner, List<BigInteger> after) {
+		ArrayList<BigInteger> replicas = new ArrayList<BigInteger>();
+		ArrayList<BigInteger> skipped = new ArrayList<BigInteger>();
+		HashSet<Object> processes = new HashSet<Object>();
+		processes.add(processOf(owner));
+		for (BigInteger node : after) {
+			if (replicas.size() >= REPLICAS - 1 || node.equals(owner)) {
+				break;
+			}
+			if (processes.add(processOf(node))) {
+				replicas.add(node);
+			} else {
+				skipped.add(node);
+			}
+		}
+		for (BigInteger node : skipped) {
+			if (replicas.size() >= REPLICAS - 1) {
+				break;
+			}
+			replicas.add(node);
+		}
+		return replicas;
+	}
+
+	// Process hosting the node: this node's own process, or else the address of the node. Every
+	// process listens on the same port, so virtual nodes share an address only when they share
+	// a process. A node whose address is not known counts as a process of its own.
+	private Object processOf(BigInteger node) {
+		if (process.isLocal(node)) {
+			return process;
+		}
+		InetAddress address = addresses.get(node);
+		return address != null ? address : node;
+	}
+
+	// Sends a write made here to the replicas without waiting for them. Payload of a REPLICATE
+	// message is (entries to store, tombstones of deleted keys). Both carry the version of the
+	// write, so replicas end up with the same keys whatever order the messages are served in.
+	private void replicate(KeyValue[] entries, KeyValue[] deleted) {
+		Message message = new Message(Message.REPLICATE, entries, deleted);
+		for (BigInteger node : replicaNodes()) {
+			try {
+				connectionPool.get(node).send(message);
+			} catch (IOException e) {
+				System.err.println("Cannot replicate to " + FingerTable.shortId(node) + ": " + e.getMessage());
+			}
+		}
+	}
+
+	// Copies every key this node owns to a node which just became one of its replicas
+	private void replicateOwnedKeys(BigInteger nodeId) {
+		BigInteger start = predecessor;
+		if (start == null) {
+			return;
+		}
+		BigInteger cursor = start;
 		try {
-			InetAddress successorIP = liveNodes.get(successorId);
-			System.out.println("Querying for file : " + file + " to node : " + successorId);
-			Socket socket = new Socket(successorIP, LISTENING_PORT);
-			ObjectOutputStream opStream = new ObjectOutputStream(socket.getOutputStream());
-			opStream.writeObject("Query file");
-			opStream.writeObject(sourceAddress);
-			opStream.writeObject(file);
-			opStream.writeObject(fileID);
+			while (true) {
+				ArrayList<KeyValue> chunk = storage.page(cursor, guid, HANDOFF_CHUNK_BYTES);
+				if (chunk.isEmpty()) {
+					return;
+				}
+				await(connectionPool.get(nodeId).request(
+						new Message(Message.REPLICATE, toArray(chunk), new KeyValue[0])));
+				cursor = FingerTable.hash(chunk.get(chunk.size() - 1).key);
+				if (cursor.equals(guid)) {
+					return;
+				}
+			}
 		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
+			System.err.println("Cannot replicate to " + FingerTable.shortId(nodeId) + ": " + e.getMessage());
+		}
+	}
+
+	// Refreshes the next finger. Fingers after it whose start also falls before the node
+	// found share the same successor and are set in the same round.
+	private void fixFingers() {
+		int i = nextFinger;
+		try {
+			BigInteger node = await(findSuccessor(fingerTable.fingerStart(i)), PeerConnection.TIMEOUT).id;
+			int from = i++;
+			while (i < FingerTable.M && checkBetweenNodes(guid, node, fingerTable.fingerStart(i))) {
+				i++;
+			}
+			fingerTable.setFingers(from, i, node);
+		} catch (IOException e) {
+			i++;
+		}
+		nextFinger = i < FingerTable.M ? i : 1;
+	}
+
+	// Pings the successors, the predecessor and the fingers. Every answer is a heartbeat for
+	// the failure detector.
+	private void sendHeartbeats() {
+		HashSet<BigInteger> monitored = new HashSet<BigInteger>(successors);
+		BigInteger predecessor = this.predecessor;
+		if (predecessor != null) {
+			monitored.add(predecessor);
+		}
+		monitored.addAll(fingerTable.nodes());
+		monitored.remove(guid);
+		failureDetector.retainAll(monitored);
+		for (BigInteger node : monitored) {
+			failureDetector.watch(node);
+			try {
+				connectionPool.get(node).request(new Message(Message.PING)).thenRun(() -> failureDetector.heartbeat(node));
+			} catch (IOException e) {
+				// Not answering is what the failure detector looks for
+			}
+		}
+	}
+
+	// Pulls this node's keys in the background when no pull finished since the last join. The
+	// successor found by a join may fail before the keys are pulled, or be found failed by the
+	// first stabilization, and a node left without successors joins again through another.
+	private void pullPendingPartition() {
+		if (partitionPending && handoffSource == null && !fingerTable.successor().equals(guid)) {
+			CompletableFuture.runAsync(this::getFilesFromSuccessor);
+		}
+	}
+
+	// Forgets the predecessor once it is suspected, so another node can take its place
+	private void checkPredecessor() {
+		BigInteger predecessor = this.predecessor;
+		if (predecessor != null && failureDetector.isSuspected(predecessor)) {
+			Tracer.event(guid, Message.PING, "predecessor " + FingerTable.shortId(predecessor) + " suspected to have failed");
+			this.predecessor = null;
+		}
+	}
+
+	// Asks the predecessor for the nodes before it. This node holds replicas of the keys of the
+	// predecessors which took it as a replica, so keys before the farthest of them belong to
+	// nodes it is no longer a replica of, such as those of an interval taken over by a node which
+	// joined behind it. Once the same predecessors are listed two rounds in a row, keys before
+	// the one after the farthest, which leaves room for one of them failing unnoticed, are
+	// dropped.
+	@SuppressWarnings("unchecked")
+	private void updatePredecessors() {
+		BigInteger predecessor = this.predecessor;
+		if (predecessor == null) {
+			predecessors = new ArrayList<BigInteger>();
+			return;
+		}
+		try {
+			// Handled on the maintenance thread, dropping a range could hold up the connection's
+			// other responses
+			connectionPool.get(predecessor).request(new Message(Message.GET_PREDECESSOR)).thenAcceptAsync(reply -> {
+				ArrayList<BigInteger> list = new ArrayList<BigInteger>();
+				list.add(predecessor);
+				TreeMap<BigInteger, InetAddress> before = (TreeMap<BigInteger, InetAddress>) reply.get(3);
+				ArrayList<BigInteger> nodes = new ArrayList<BigInteger>(before.keySet());
+				nodes.sort((a, b) -> RingMath.distance(a, predecessor).compareTo(RingMath.distance(b, predecessor)));
+				for (BigInteger node : nodes) {
+					if (list.size() > SUCCESSORS || node.equals(guid)) {
+						break;
+					}
+					// A stale list may name nodes between the predecessor and this node
+					if (RingMath.inOpen(guid, predecessor, node) && !list.contains(node)) {
+						addresses.putIfAbsent(node, before.get(node));
+						list.add(node);
+					}
+				}
+				ArrayList<BigInteger> previous = predecessors;
+				predecessors = list;
+				BigInteger keptFrom = keptFrom(list);
+				if (keptFrom != null && list.equals(previous) && handoffSource == null) {
+					storage.extractRange(guid, keptFrom);
+				}
+			}, maintenance);
+		} catch (IOException e) {
+			// The failure detector finds out whether the predecessor is gone
+		}
+	}
+
+	// Start of the keys this node keeps, given its predecessors closest first: the predecessor
+	// after the farthest one which takes this node as a replica, as far as this node knows their
+	// successors, and one more. Null when the list does not reach that far.
+	private BigInteger keptFrom(ArrayList<BigInteger> predecessors) {
+		ArrayList<BigInteger> after = new ArrayList<BigInteger>(successors);
+		after.add(0, guid);
+		int farthest = -1;
+		for (int i = 0; i < predecessors.size(); i++) {
+			if (replicasOf(predecessors.get(i), after.subList(0, Math.min(after.size(), SUCCESSORS))).contains(guid)) {
+				farthest = i;
+			}
+			after.add(0, predecessors.get(i));
+		}
+		return farthest + 2 < predecessors.size() ? predecessors.get(farthest + 2) : null;
+	}
+
+	// First successor not suspected to have failed, or the successor when all are suspected
+	private BigInteger liveSuccessor() {
+		for (BigInteger node : successors) {
+			if (!failureDetector.isSuspected(node)) {
+				return node;
+			}
+		}
+		return fingerTable.successor();
+	}
+
+	// Closest preceding finger of the id which is not suspected to have failed
+	private BigInteger closestPrecedingNode(BigInteger id) {
+		return fingerTable.closestPrecedingNode(id, failureDetector::isSuspected);
+	}
+
+	// Removes a node which left or failed from the finger table, the successor list and the
+	// predecessor. The next live successor is promoted at once; it already holds a replica of
+	// the keys the failed node owned.
+	private void nodeGone(BigInteger nodeId) {
+		fingerTable.removeNode(nodeId);
+		ArrayList<BigInteger> previous = successors;
+		ArrayList<BigInteger> list = new ArrayList<BigInteger>(previous);
+		if (list.remove(nodeId)) {
+			successors = list;
+			orphaned = list.isEmpty();
+			fingerTable.setFinger(0, list.isEmpty() ? guid : list.get(0));
+			// The successor after the failed replica becomes one and has no copy yet
+			replicateToNewReplicas(previous, list);
+		}
+		if (nodeId.equals(predecessor)) {
+			predecessor = null;
+		}
+		connectionPool.remove(nodeId);
+		failureDetector.remove(nodeId);
+		routeCache.invalidate(nodeId);
+	}
 
+	// A node believes it is this node's predecessor
+	private void notified(BigInteger nodeId, InetAddress address) {
+		BigInteger predecessor = this.predecessor;
+		if (nodeId.equals(guid) || !(predecessor == null || RingMath.inOpen(predecessor, guid, nodeId))) {
+			return;
+		}
+		addresses.put(nodeId, address);
+		setPredecessor(nodeId);
+		routeCache.invalidate(guid);
+		if (fingerTable.successor().equals(guid) && !orphaned) {
+			// The first node learns of the second one from its notification. An orphaned node
+			// joins again instead, the notifying node is behind it.
+			updateSuccessors(nodeId, null);
+		}
+	}
+
+	// Sets the predecessor. A new predecessor behind the last one means the nodes in between
+	// left or failed and their keys are owned here now, so the replicas get a copy of them;
+	// they only held the keys of the nodes before them up to now.
+	private void setPredecessor(BigInteger nodeId) {
+		BigInteger last = lastPredecessor;
+		predecessor = nodeId;
+		lastPredecessor = nodeId;
+		if (last != null && !last.equals(nodeId) && RingMath.inOpen(nodeId, guid, last)) {
+			for (BigInteger node : replicaNodes()) {
+				CompletableFuture.runAsync(() -> replicateOwnedKeys(node));
+			}
+		}
+	}
+
+	// A neighbour is leaving, payload is (leaving node, its predecessor and address, its
+	// successor and address)
+	private void neighbourLeaving(Message message) {
+		BigInteger leaving = (BigInteger) message.get(0);
+		routeCache.invalidate(leaving);
+		if (leaving.equals(fingerTable.successor())) {
+			BigInteger successor = learn(message, 3, null);
+			fingerTable.removeNode(leaving);
+			updateSuccessors(successor == null ? guid : successor, null);
+		} else {
+			nodeGone(leaving);
+		}
+		if (leaving.equals(predecessor)) {
+			BigInteger newPredecessor = learn(message, 1, null);
+			if (newPredecessor == null || newPredecessor.equals(guid)) {
+				predecessor = null;
+			} else {
+				setPredecessor(newPredecessor);
+			}
+		}
+		connectionPool.remove(leaving);
+		NEIGHBOUR_LEAVES.increment();
+		Tracer.event(guid, Message.LEAVE, "node " + FingerTable.shortId(leaving) + " left the network");
+	}
+
+	// Returns true if the id falls between this node's predecessor and this node,
+	// i.e. this node is the owner of the id
+	public boolean isResponsibleFor(BigInteger id) {
+		if (id.equals(guid)) {
+			return true;
+		}
+		BigInteger predecessor = this.predecessor;
+		if (predecessor == null) {
+			// Until a predecessor is known only a node alone in the ring owns anything
+			return fingerTable.successor().equals(guid);
 		}
+		return checkBetweenNodes(predecessor, guid, id);
+	}
+
+	//Asks the file's owner whether it stores the file
+	public boolean queryFile(String file) throws IOException {
+		return (Boolean) checkResponse(await(sendToOwner(new Message(Message.QUERY_FILE, file))));
 	}
 
 	//Same as the searching file, except that it has to insert the file in that particular node.
-	public void insertFileAtID(int id, String file) {
-		if (id == guid) {
-			System.out.println("File : " + file + " inserted at : " + guid);
-			files.add(file);
+	public void insertFileAtID(BigInteger id, String file) {
+		insertFileAtID(id, file, Tracer.newTrace());
+	}
+
+	//Inserts the file on behalf of the traced operation. Where the file is stored and the nodes
+	//it is routed through are recorded as spans of the trace rather than printed, since every
+	//node on the way would print for every file.
+	private void insertFileAtID(BigInteger id, String file, long traceId) {
+		if (id.equals(guid) || isResponsibleFor(id)) {
+			if (traceId != 0) {
+				Tracer.record(traceId, guid, Message.INSERT_FILE, "inserted " + file);
+			}
+			KeyValue entry = new KeyValue(file, StorageEngine.EMPTY_VALUE, KeyValue.nextVersion());
+			storage.put(entry);
+			replicate(new KeyValue[] { entry }, new KeyValue[0]);
 		} else {
-			boolean isNodeAvailable = fingerTable.successorTable.containsKey(id);
-			if (isNodeAvailable) {
-				int successorID = fingerTable.successorTable.get(id);
-				if (successorID == guid) {
-					files.add(file);
-					System.out.println("File = " + file + " inserted at " + guid);
-				} else {
-					transferFileToNode(successorID, successorID, file, true);
+			BigInteger successorId = liveSuccessor();
+			if (checkBetweenNodes(guid, successorId, id)) {
+				transferFileToNode(successorId, successorId, file, traceId);
+			} else {
+				BigInteger idToSend = closestPrecedingNode(id);
+				if (idToSend.equals(guid)) {
+					idToSend = successorId;
+				}
+				transferFileToNode(id, idToSend, file, traceId);
+			}
+
+		}
+
+	}
+
+	//Stores the value under the key at the key's owner
+	public void put(String key, byte[] value) throws IOException {
+		valueCache.remove(key);
+		checkResponse(await(sendToOwner(new Message(Message.PUT, key, value))));
+	}
+
+	//Returns the value stored under the key, or null if the key is not stored
+	//Keys read often are served from the value cache when they belong to another node.
+	public byte[] get(String key) throws IOException {
+		if (!valueCache.isEnabled() || isResponsibleFor(FingerTable.hash(key))) {
+			return (byte[]) checkResponse(await(sendToOwner(new Message(Message.GET, key))));
+		}
+		KeyValue cached = valueCache.get(key);
+		if (cached != null) {
+			return cached.value;
+		}
+		if (!valueCache.admit(key)) {
+			return (byte[]) checkResponse(await(sendToOwner(new Message(Message.GET, key))));
+		}
+		Object result = checkResponse(await(sendToOwner(new Message(Message.CACHED_GET, key, guid))));
+		if (!(result instanceof KeyValue[])) {
+			// Read from a node other than the owner, which cannot be cached
+			return (byte[]) result;
+		}
+		KeyValue[] entries = (KeyValue[]) result;
+		if (entries.length == 0) {
+			return null;
+		}
+		valueCache.put(entries[0]);
+		return entries[0].value;
+	}
+
+	//Deletes the key at the key's owner, returns false if the key was not stored
+	public boolean delete(String key) throws IOException {
+		valueCache.remove(key);
+		return (Boolean) checkResponse(await(sendToOwner(new Message(Message.DELETE, key))));
+	}
+
+	//Stores all the entries. Keys are grouped by owner and each owner gets its batches
+	//pipelined on one connection. Keys an owner turns down, or which were in a batch that
+	//failed, are stored one at a time.
+	public void multiPut(Map<String, byte[]> values) throws IOException {
+		ArrayList<CompletableFuture<Void>> pending = new ArrayList<CompletableFuture<Void>>();
+		for (Map.Entry<BigInteger, ArrayList<String>> group : groupByOwner(values.keySet()).entrySet()) {
+			BigInteger owner = group.getKey();
+			for (ArrayList<String> keys : batches(group.getValue(), values)) {
+				KeyValue[] entries = new KeyValue[keys.size()];
+				for (int i = 0; i < entries.length; i++) {
+					entries[i] = new KeyValue(keys.get(i), values.get(keys.get(i)), 0);
 				}
+				valueCache.removeAll(keys);
+				pending.add(sendBatch(owner, new Message(Message.MULTI_PUT, (Object) entries)).handle((reply, error) -> {
+					@SuppressWarnings("unchecked")
+					ArrayList<String> retry = error != null ? keys : (ArrayList<String>) reply.get(0);
+					if (!retry.isEmpty()) {
+						routeCache.invalidate(owner);
+					}
+					ArrayList<CompletableFuture<Object>> singles = new ArrayList<CompletableFuture<Object>>();
+					for (String key : retry) {
+						singles.add(sendToOwner(new Message(Message.PUT, key, values.get(key))).thenApply(Peer::result));
+					}
+					return CompletableFuture.allOf(singles.toArray(new CompletableFuture<?>[singles.size()]));
+				}).thenCompose(singles -> singles));
+			}
+		}
+		await(CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[pending.size()])),
+				LOOKUP_TIMEOUT + PeerConnection.TIMEOUT * pending.size());
+	}
+
+	//Reads all the keys, see multiGet(keys, consumer). The map holds null for keys not stored.
+	public Map<String, byte[]> multiGet(Collection<String> keys) throws IOException {
+		Map<String, byte[]> values = Collections.synchronizedMap(new HashMap<String, byte[]>());
+		CompletableFuture<Void> done = multiGet(keys, values::put);
+		await(done, LOOKUP_TIMEOUT + PeerConnection.TIMEOUT * (1 + keys.size() / 1024));
+		return values;
+	}
 
+	//Reads all the keys in batches grouped by owner. Each key and its value, null when the key
+	//is not stored, is handed to the consumer as soon as its batch comes back, on the batch
+	//threads, possibly several at once, and never on the thread reading a connection. Keys
+	//found in the value cache are handed over on the calling thread. The future completes once
+	//every key was handed over.
+	public CompletableFuture<Void> multiGet(Collection<String> keys, BiConsumer<String, byte[]> consumer) {
+		ArrayList<String> remote = new ArrayList<String>();
+		for (String key : keys) {
+			KeyValue cached = valueCache.isEnabled() ? valueCache.get(key) : null;
+			if (cached != null && !isResponsibleFor(FingerTable.hash(key))) {
+				consumer.accept(key, cached.value);
 			} else {
-				int sourceID;
-				int minDistance = 20;
-				TreeMap<Integer, Integer> nodesDistance = new TreeMap<Integer, Integer>();
-				for (Map.Entry<Integer, Integer> entry : fingerTable.successorTable.entrySet()) {
-					sourceID = entry.getKey();
-					int distance = distanceBetweenNodes(sourceID, id);
-					minDistance = Math.min(minDistance, distance);
-					nodesDistance.put(distance, sourceID);
-				}
-				int idToSend = nodesDistance.get(minDistance);
-				int successorId = fingerTable.successorTable.get(idToSend);
-				if (successorId == guid) {
-					files.add(file);
-					System.out.println("File = " + file + " inserted at " + guid);
-				} else {
-					if (checkBetweenNodes(idToSend, successorId, id)) {
-						transferFileToNode(successorId, successorId, file, true);
-					} else {
-						transferFileToNode(id, successorId, file, true);
+				remote.add(key);
+			}
+		}
+		ArrayList<CompletableFuture<Void>> pending = new ArrayList<CompletableFuture<Void>>();
+		for (Map.Entry<BigInteger, ArrayList<String>> group : groupByOwner(remote).entrySet()) {
+			BigInteger owner = group.getKey();
+			for (ArrayList<String> batch : batches(group.getValue(), null)) {
+				pending.add(sendBatch(owner, new Message(Message.MULTI_GET, batch)).handleAsync((reply, error) -> {
+					ArrayList<String> retry = batch;
+					if (error == null) {
+						HashSet<String> answered = new HashSet<String>();
+						for (KeyValue entry : (KeyValue[]) reply.get(0)) {
+							answered.add(entry.key);
+							consumer.accept(entry.key, entry.value);
+						}
+						@SuppressWarnings("unchecked")
+						ArrayList<String> notOwned = (ArrayList<String>) reply.get(1);
+						answered.addAll(notOwned);
+						for (String key : batch) {
+							if (!answered.contains(key)) {
+								consumer.accept(key, null);
+							}
+						}
+						retry = notOwned;
+					}
+					if (!retry.isEmpty()) {
+						routeCache.invalidate(owner);
 					}
+					ArrayList<CompletableFuture<Void>> singles = new ArrayList<CompletableFuture<Void>>();
+					for (String key : retry) {
+						singles.add(sendToOwner(new Message(Message.GET, key))
+								.thenAcceptAsync(response -> consumer.accept(key, (byte[]) result(response)), batchThreads));
+					}
+					return CompletableFuture.allOf(singles.toArray(new CompletableFuture<?>[singles.size()]));
+				}, batchThreads).thenCompose(singles -> singles));
+			}
+		}
+		return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[pending.size()]));
+	}
+
+	//Streams every key in the ring interval (start, end], the whole ring when start equals end,
+	//which starts with the prefix, null for any key, to the consumer, see RingScan. Owners are
+	//looked up from this node and pages it owns are served from its own storage.
+	public CompletableFuture<Void> scan(BigInteger start, BigInteger end, String prefix, BiConsumer<String, byte[]> consumer) {
+		return RingScan.scan(new RingScan.Nodes() {
+			@Override
+			public CompletableFuture<NodeRef> owner(BigInteger id) {
+				return isResponsibleFor(id) ? CompletableFuture.completedFuture(new NodeRef(guid, addresses.get(guid)))
+						: resolve(id, Tracer.newTrace());
+			}
+
+			@Override
+			public CompletableFuture<Message> request(NodeRef node, Message request) {
+				if (node.id.equals(guid)) {
+					return CompletableFuture.completedFuture(request.reply(scanPage(request)));
+				}
+				addresses.putIfAbsent(node.id, node.address);
+				return forward(node.id, request);
+			}
+		}, start, end, prefix, consumer);
+	}
+
+	//Streams every key starting with the prefix. Keys are placed by hash, so the whole ring is
+	//scanned.
+	public CompletableFuture<Void> scanPrefix(String prefix, BiConsumer<String, byte[]> consumer) {
+		return scan(guid, guid, prefix, consumer);
+	}
+
+	//Serves a page of a scan and returns the response payload: the entries after the cursor
+	//owned here which match the prefix, in ring order, the id the page reaches, and this
+	//node's successor for the scan to go on with once the page reaches this node. At most
+	//maxKeys keys are looked at and about BATCH_BYTES of values sent.
+	private Object[] scanPage(Message request) {
+		BigInteger cursor = (BigInteger) request.get(0);
+		BigInteger end = (BigInteger) request.get(1);
+		String prefix = (String) request.get(2);
+		int maxKeys = (Integer) request.get(3);
+		if (!isResponsibleFor(cursor.add(BigInteger.ONE).mod(FingerTable.RING_SIZE))) {
+			return new Object[] { null, Message.NOT_OWNER };
+		}
+		BigInteger successor = liveSuccessor();
+		BigInteger limit = successor.equals(guid) || checkBetweenNodes(cursor, guid, end) ? end : guid;
+		ArrayList<KeyValue> keys = storage.digest(cursor, limit, maxKeys);
+		BigInteger reached = keys.size() < maxKeys ? limit : FingerTable.hash(keys.get(keys.size() - 1).key);
+		ArrayList<KeyValue> page = new ArrayList<KeyValue>();
+		int bytes = 0;
+		for (KeyValue key : keys) {
+			KeyValue entry = prefix == null || key.key.startsWith(prefix) ? storage.getEntry(key.key) : null;
+			if (entry != null) {
+				page.add(entry);
+				bytes += entry.key.length() + entry.value.length;
+				if (bytes >= BATCH_BYTES) {
+					reached = FingerTable.hash(entry.key);
+					break;
+				}
+			}
+		}
+		return new Object[] { toArray(page), reached, successor, addresses.get(successor) };
+	}
+
+	//Groups the keys by owner. The keys are taken in ring order so that one lookup finds the
+	//owner of a whole interval of them, later keys in it are found in the route cache. Keys
+	//whose owner cannot be looked up go to the next hop towards them, which turns down the
+	//keys it does not own.
+	private HashMap<BigInteger, ArrayList<String>> groupByOwner(Collection<String> keys) {
+		ArrayList<Map.Entry<BigInteger, String>> ids = new ArrayList<Map.Entry<BigInteger, String>>(keys.size());
+		for (String key : keys) {
+			ids.add(new AbstractMap.SimpleEntry<BigInteger, String>(FingerTable.hash(key), key));
+		}
+		ids.sort(Map.Entry.comparingByKey());
+		HashMap<BigInteger, ArrayList<String>> groups = new HashMap<BigInteger, ArrayList<String>>();
+		for (Map.Entry<BigInteger, String> entry : ids) {
+			BigInteger id = entry.getKey();
+			BigInteger owner = guid;
+			if (!isResponsibleFor(id)) {
+				NodeRef found = routeCache.get(id);
+				if (found == null) {
+					try {
+						found = await(resolve(id, Tracer.newTrace()));
+					} catch (IOException e) {
+						System.err.println("Lookup of " + FingerTable.shortId(id) + " failed: " + e.getMessage());
+					}
+				}
+				if (found != null) {
+					addresses.putIfAbsent(found.id, found.address);
+					owner = found.id;
+				} else {
+					owner = nextHop(id);
 				}
+			}
+			groups.computeIfAbsent(owner, node -> new ArrayList<String>()).add(entry.getValue());
+		}
+		return groups;
+	}
 
+	//Splits the keys into batches of about BATCH_BYTES of keys and values
+	private static ArrayList<ArrayList<String>> batches(ArrayList<String> keys, Map<String, byte[]> values) {
+		ArrayList<ArrayList<String>> batches = new ArrayList<ArrayList<String>>();
+		ArrayList<String> batch = new ArrayList<String>();
+		int bytes = 0;
+		for (String key : keys) {
+			int size = key.length() + (values == null ? 0 : values.get(key).length);
+			if (!batch.isEmpty() && bytes + size > BATCH_BYTES) {
+				batches.add(batch);
+				batch = new ArrayList<String>();
+				bytes = 0;
 			}
+			batch.add(key);
+			bytes += size;
+		}
+		if (!batch.isEmpty()) {
+			batches.add(batch);
+		}
+		return batches;
+	}
 
+	//Sends a batch to its owner, or serves it here when this node is the owner
+	private CompletableFuture<Message> sendBatch(BigInteger owner, Message batch) {
+		if (owner.equals(guid)) {
+			return CompletableFuture.completedFuture(batch.reply(applyBatch(batch)));
 		}
+		return forward(owner, batch);
+	}
 
+	//Serves a batch sent to this node as the owner of its keys and returns the response payload.
+	//Keys this node does not own, or has not been handed yet, are listed for the sender to send
+	//on their own.
+	@SuppressWarnings("unchecked")
+	private Object[] applyBatch(Message batch) {
+		ArrayList<String> notOwned = new ArrayList<String>();
+		if (batch.opcode == Message.MULTI_PUT) {
+			ArrayList<KeyValue> stored = new ArrayList<KeyValue>();
+			for (KeyValue received : (KeyValue[]) batch.get(0)) {
+				if (!isResponsibleFor(FingerTable.hash(received.key))) {
+					notOwned.add(received.key);
+					continue;
+				}
+				KeyValue entry = new KeyValue(received.key, received.value, KeyValue.nextVersion());
+				storage.put(entry);
+				stored.add(entry);
+				invalidateCaches(entry.key, entry.version);
+			}
+			if (!stored.isEmpty()) {
+				replicate(toArray(stored), new KeyValue[0]);
+			}
+			return new Object[] { notOwned };
+		}
+		ArrayList<KeyValue> found = new ArrayList<KeyValue>();
+		for (String key : (ArrayList<String>) batch.get(0)) {
+			BigInteger id = FingerTable.hash(key);
+			KeyValue entry = isResponsibleFor(id) ? storage.getEntry(key) : null;
+			if (entry != null) {
+				found.add(entry);
+			} else if (!isResponsibleFor(id) || (handoffSource != null && checkBetweenNodes(handoffCursor, guid, id))) {
+				notOwned.add(key);
+			}
+		}
+		return new Object[] { toArray(found), notOwned };
 	}
 
-	//Returns true if the node looking for is between the actual and successor node.
-	public boolean checkBetweenNodes(int startNode, int endNode, int actualNode) {
-		int i = startNode;
-		boolean isBetween = false;
-		while (i != endNode) {
-			i = Math.abs((i + 1) % 16);
-			if (i == actualNode) {
-				isBetween = true;
-				break;
+	//Result of a key value response inside a future chain, see checkResponse
+	private static Object result(Message response) {
+		if (response.payload.length > 1) {
+			throw new CompletionException(new IOException((String) response.get(1)));
+		}
+		return response.get(0);
+	}
+
+	//Returns the result of a key value response. Failed operations carry the reason as a
+	//second field
+	private static Object checkResponse(Message response) throws IOException {
+		if (response.payload.length > 1) {
+			throw new IOException((String) response.get(1));
+		}
+		return response.get(0);
+	}
+
+	private static boolean isNotOwner(Message response) {
+		return response.payload.length > 1 && Message.NOT_OWNER.equals(response.get(1));
+	}
+
+	//Sends a key request straight to the key's owner, found in the route cache or by a lookup.
+	//An owner taken from a stale interval answers NOT_OWNER, and the owner is looked up once
+	//more. Requests which still do not reach the owner are routed hop by hop instead.
+	//The request is traced if sampled, and its time taken recorded in the metrics.
+	private CompletableFuture<Message> sendToOwner(Message request) {
+		String key = (String) request.get(0);
+		request.traceId = Tracer.newTrace();
+		long start = System.nanoTime();
+		return lookup(key, request.traceId)
+				.thenCompose(owner -> requestOwner(owner, request))
+				.thenCompose(response -> isNotOwner(response)
+						? resolve(FingerTable.hash(key), request.traceId).thenCompose(owner -> requestOwner(owner, request))
+						: CompletableFuture.completedFuture(response))
+				.thenCompose(response -> isNotOwner(response) ? routeRequest(request)
+						: CompletableFuture.completedFuture(response))
+				.exceptionallyCompose(error -> routeRequest(request))
+				.whenComplete((response, error) -> {
+					requestSeconds(request.opcode).record(System.nanoTime() - start);
+					if (error != null || response.payload.length > 1) {
+						Metrics.counter("chord_request_failures_total", "op=\"" + Message.name(request.opcode) + "\"",
+								"Key value requests which failed").increment();
+					}
+				});
+	}
+
+	//Latency histogram of the key value requests with the opcode. Threads racing to create it
+	//get the same one from the registry.
+	private static Histogram requestSeconds(byte opcode) {
+		Histogram histogram = REQUEST_SECONDS.get(opcode & 0xff);
+		if (histogram == null) {
+			histogram = Metrics.histogram("chord_request_seconds", "op=\"" + Message.name(opcode) + "\"",
+					"Time taken by key value requests, from the node the client uses", 1e-9);
+			REQUEST_SECONDS.set(opcode & 0xff, histogram);
+		}
+		return histogram;
+	}
+
+	//Sends the request to the node found as the key's owner, marked direct so that it is not
+	//forwarded. The interval of an owner which turns it down or does not answer is dropped.
+	private CompletableFuture<Message> requestOwner(NodeRef owner, Message request) {
+		if (owner.id.equals(guid)) {
+			return routeRequest(request);
+		}
+		addresses.putIfAbsent(owner.id, owner.address);
+		Message direct = request.forward();
+		direct.direct = true;
+		return forward(owner.id, direct).whenComplete((response, error) -> {
+			if (error != null || isNotOwner(response)) {
+				routeCache.invalidate(owner.id);
 			}
+		});
+	}
+
+	//Next node on the way to the owner of the id, or this node itself when it is the owner
+	public BigInteger nextHop(BigInteger id) {
+		if (isResponsibleFor(id)) {
+			return guid;
 		}
-		return isBetween;
+		BigInteger successorId = liveSuccessor();
+		if (checkBetweenNodes(guid, successorId, id)) {
+			return successorId;
+		}
+		BigInteger idToSend = closestPrecedingNode(id);
+		return idToSend.equals(guid) ? successorId : idToSend;
 	}
 
-	//Finds the distance between any two nodes in the network
-	public int distanceBetweenNodes(int sourceId, int destId) {
-		int distance = 1;
-		int result;
-		for (;;) {
-			result = (distance + sourceId) % MAX_NODES;
-			if (result == destId) {
-				break;
+	//Applies a key value request here if this node owns the key, otherwise forwards it towards
+	//the owner. The owner's response travels back along the same path.
+	public CompletableFuture<Message> routeRequest(Message request) {
+		String key = (String) request.get(0);
+		BigInteger id = FingerTable.hash(key);
+		// A read marked local is answered from this node's storage, wherever the key belongs
+		boolean local = request.opcode == Message.GET && request.payload.length > 1;
+		boolean read = request.opcode == Message.GET || request.opcode == Message.CACHED_GET;
+		BigInteger next = local ? guid : nextHop(id);
+		if (request.opcode == Message.CACHED_GET && !next.equals(guid)) {
+			// A node on the way which caches the key answers for the owner
+			KeyValue cached = valueCache.get(key);
+			if (cached != null) {
+				return CompletableFuture.completedFuture(request.reply((Object) new KeyValue[] { cached }));
+			}
+		}
+		BigInteger source = handoffSource;
+		if (next.equals(guid) && source != null && read && !local && !storage.contains(key)
+				&& !tombstones.containsKey(key) && checkBetweenNodes(handoffCursor, guid, id)) {
+			// The key has not been handed over yet, read it where it still is
+			next = source;
+			long traceId = request.traceId;
+			request = new Message(Message.GET, key, true);
+			request.traceId = traceId;
+		}
+		if (next.equals(guid)) {
+			if (request.traceId != 0) {
+				Tracer.record(request.traceId, guid, request.opcode, "applied " + key);
 			}
-			distance++;
+			Message applied = request.reply(applyLocally(request));
+			if (read && !local && isMissing(applied) && !tombstones.containsKey(key)) {
+				return readFromReplicas(key, applied, request.traceId);
+			}
+			return CompletableFuture.completedFuture(applied);
+		}
+		CompletableFuture<Message> response = forward(next, request);
+		ArrayList<BigInteger> list = successors;
+		if (!read || local || list.isEmpty() || !next.equals(list.get(0))) {
+			return response;
+		}
+		// The successor owns the key; if it does not answer in time the successors after it
+		// hold replicas
+		Message replicaRead = new Message(Message.GET, key, true);
+		replicaRead.traceId = request.traceId;
+		for (BigInteger replica : replicasOf(next, list.subList(1, list.size()))) {
+			response = response.exceptionallyCompose(error -> forward(replica, replicaRead));
+		}
+		return response;
+	}
+
+	//Reads a key this node owns but does not hold from its replicas, one after the other until
+	//one holds it. A node which took over an interval before the interval's keys reached it,
+	//from a successor which failed or through a pull which did not finish, still finds them
+	//there. The response is the one given when no replica holds the key either.
+	private CompletableFuture<Message> readFromReplicas(String key, Message missing, long traceId) {
+		Message replicaRead = new Message(Message.GET, key, true);
+		replicaRead.traceId = traceId;
+		CompletableFuture<Message> response = CompletableFuture.completedFuture(missing);
+		for (BigInteger replica : replicaNodes()) {
+			response = response.thenCompose(found -> !isMissing(found) ? CompletableFuture.completedFuture(found)
+					: forward(replica, replicaRead).handle((reply, error) -> error != null || isMissing(reply) ? found : reply));
 		}
-		return distance;
+		return response;
+	}
+
+	//Whether a read response found nothing: a value of null, or no entry for a cached read.
+	//Failed reads are not missing, they carry their reason.
+	private static boolean isMissing(Message response) {
+		Object value = response.payload.length == 1 ? response.get(0) : "";
+		return value == null || (value instanceof KeyValue[] && ((KeyValue[]) value).length == 0);
 	}
 
-	//Transfers files from local to the respective node in the network
-	public void transferFileToNode(int idToBeInserted, int successorID, String file, boolean isFile) {
+	//Sends a copy of the request to the node, the request id of the original is needed to
+	//answer it. Fails when no response arrives within the request timeout.
+	private CompletableFuture<Message> forward(BigInteger nodeId, Message request) {
 		try {
-			InetAddress successorIP = liveNodes.get(successorID);
-			Socket socket = new Socket(successorIP, LISTENING_PORT);
-			ObjectOutputStream opStream = new ObjectOutputStream(socket.getOutputStream());
-			if (isFile) {
-				opStream.writeObject("Insert file");
-				System.out.println(
-						"File : " + file + " = " + Math.abs(file.hashCode() % 16) + " routed to : " + successorID);
-				opStream.writeObject(idToBeInserted);
-				opStream.writeObject(file);
-			} else {
-				opStream.writeObject("Transferring files");
-				opStream.writeObject(files);
+			if (request.traceId != 0) {
+				Tracer.record(request.traceId, guid, request.opcode, "forwarded to " + FingerTable.shortId(nodeId));
 			}
-
+			return connectionPool.get(nodeId).request(request.forward());
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} finally {
+			CompletableFuture<Message> failed = new CompletableFuture<Message>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
 
+	//Runs a key value request against the local storage and returns the response payload
+	private Object applyLocally(Message request) {
+		String key = (String) request.get(0);
+		switch (request.opcode) {
+		case Message.PUT:
+			KeyValue entry = new KeyValue(key, (byte[]) request.get(1), KeyValue.nextVersion());
+			storage.put(entry);
+			replicate(new KeyValue[] { entry }, new KeyValue[0]);
+			invalidateCaches(key, entry.version);
+			return true;
+		case Message.GET:
+			return storage.get(key);
+		case Message.CACHED_GET:
+			KeyValue stored = storage.getEntry(key);
+			if (stored == null) {
+				return new KeyValue[0];
+			}
+			addCacheReader(key, (BigInteger) request.get(1));
+			return new KeyValue[] { stored };
+		case Message.QUERY_FILE:
+			return storage.contains(key);
+		case Message.DELETE:
+			long deleteVersion = KeyValue.nextVersion();
+			// A key not handed over yet is still on its way from the successor; the tombstone
+			// keeps it from being stored when it arrives. The replicas get the tombstone even
+			// when the key is not stored here, since reads of keys missing here go to them.
+			boolean deleted = deleteIfOlder(key, deleteVersion);
+			replicate(new KeyValue[0], new KeyValue[] { new KeyValue(key, StorageEngine.EMPTY_VALUE, deleteVersion) });
+			invalidateCaches(key, deleteVersion);
+			return deleted;
+		default:
+			throw new IllegalArgumentException("Not a key value request: " + request.opcode);
 		}
 	}
 
-	//Get files from the successor when a node comes online
+	//Remembers that the node caches the key, if it can be reached to invalidate its copy
+	private void addCacheReader(String key, BigInteger reader) {
+		if (reader.equals(guid) || !addresses.containsKey(reader)) {
+			return;
+		}
+		cacheReaders.computeIfAbsent(key, k -> new ConcurrentHashMap<BigInteger, Long>())
+				.put(reader, System.currentTimeMillis() + valueCache.ttl());
+	}
+
+	//Tells the nodes caching the key about its new version. A node which cannot be reached
+	//keeps its copy until the copy expires.
+	private void invalidateCaches(String key, long version) {
+		ConcurrentHashMap<BigInteger, Long> readers = cacheReaders.remove(key);
+		if (readers == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		Message message = new Message(Message.INVALIDATE, key, version);
+		for (Map.Entry<BigInteger, Long> reader : readers.entrySet()) {
+			if (reader.getValue() > now) {
+				try {
+					connectionPool.get(reader.getKey()).send(message);
+				} catch (IOException e) {
+					System.err.println("Cannot invalidate " + key + " at " + FingerTable.shortId(reader.getKey()) + ": " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	// Drops the tombstones of deletes older than TOMBSTONE_MILLIS, once no handoff is running
+	private void expireTombstones() {
+		if (handoffSource != null) {
+			return;
+		}
+		long oldest = (System.currentTimeMillis() - TOMBSTONE_MILLIS) << 16;
+		tombstones.values().removeIf(version -> version < oldest);
+	}
+
+	//Forgets the readers whose cached copies have expired
+	private void expireCacheReaders() {
+		long now = System.currentTimeMillis();
+		for (ConcurrentHashMap<BigInteger, Long> readers : cacheReaders.values()) {
+			readers.values().removeIf(expiresAt -> expiresAt <= now);
+		}
+		cacheReaders.values().removeIf(ConcurrentHashMap::isEmpty);
+	}
+
+	//Successor list with the address of each successor, as sent to other nodes
+	private TreeMap<BigInteger, InetAddress> successorMap() {
+		TreeMap<BigInteger, InetAddress> next = new TreeMap<BigInteger, InetAddress>();
+		for (BigInteger node : successors) {
+			InetAddress address = addresses.get(node);
+			if (address != null) {
+				next.put(node, address);
+			}
+		}
+		return next;
+	}
+
+	//Predecessor list with the address of each node, as sent to other nodes
+	private TreeMap<BigInteger, InetAddress> predecessorMap() {
+		TreeMap<BigInteger, InetAddress> before = new TreeMap<BigInteger, InetAddress>();
+		for (BigInteger node : predecessors) {
+			InetAddress address = addresses.get(node);
+			if (address != null) {
+				before.put(node, address);
+			}
+		}
+		return before;
+	}
+
+	//Number of keys stored here which this node owns, replicas of other nodes' keys left out
+	public int ownedKeyCount() {
+		BigInteger predecessor = this.predecessor;
+		return predecessor == null ? storage.size() : storage.range(predecessor, guid).size();
+	}
+
+	//Payload of a STATS response: the number of keys this node owns and its successors
+	private Object[] stats() {
+		return new Object[] { ownedKeyCount(), successorMap() };
+	}
+
+	//Walks the ring along the successor lists and prints each node's share of the ring and of
+	//the keys, then the same per process and the variance of the keys held by each node
 	@SuppressWarnings("unchecked")
-	public void getFilesFromSuccessor() {
-		try {
-			if (isOnline) {
-				int id = fingerTable.firstActualNode;
-				int successorID = fingerTable.successorTable.get(id);
-				if (successorID != guid) {
-					System.out.println("Getting back files from successor");
-					InetAddress successorIP = liveNodes.get(successorID);
-					Socket socket = new Socket(successorIP, LISTENING_PORT);
-					System.out.println("Before ops");
-					ObjectOutputStream opStream = new ObjectOutputStream(socket.getOutputStream());
-					opStream.writeObject("Get files");
-					ObjectInputStream ipStream = new ObjectInputStream(socket.getInputStream());
-					opStream.writeObject(guid);
-					ArrayList<String> tempFiles = (ArrayList<String>) ipStream.readObject();
-					for (String string : tempFiles) {
-						files.add(string);
-					}
-					System.out.println("All files received from successor");
+	public void printDistribution() throws IOException {
+		ArrayList<BigInteger> ring = new ArrayList<BigInteger>();
+		HashMap<BigInteger, Integer> keyCounts = new HashMap<BigInteger, Integer>();
+		BigInteger node = guid;
+		while (ring.size() < REPORT_NODES) {
+			Object[] stats = node.equals(guid) ? stats() : await(connectionPool.get(node).request(new Message(Message.STATS))).payload;
+			ring.add(node);
+			keyCounts.put(node, (Integer) stats[0]);
+			BigInteger successor = null;
+			for (Map.Entry<BigInteger, InetAddress> next : ((TreeMap<BigInteger, InetAddress>) stats[1]).entrySet()) {
+				BigInteger candidate = next.getKey();
+				if (!candidate.equals(node) && (successor == null
+						|| RingMath.distance(node, candidate).compareTo(RingMath.distance(node, successor)) < 0)) {
+					successor = candidate;
+				}
+				if (!candidate.equals(guid)) {
+					addresses.putIfAbsent(candidate, next.getValue());
 				}
+			}
+			if (successor == null || ring.contains(successor)) {
+				break;
+			}
+			node = successor;
+		}
+		int count = ring.size();
+		double totalKeys = 0;
+		HashMap<String, double[]> processes = new HashMap<String, double[]>();
+		System.out.println("********************** KEY DISTRIBUTION ************************");
+		System.out.println("\t\t" + "Node \t\t" + "Process \t" + "Ring % \t" + "Keys");
+		for (int i = 0; i < count; i++) {
+			BigInteger current = ring.get(i);
+			BigInteger arc = count == 1 ? FingerTable.RING_SIZE : RingMath.distance(ring.get((i + count - 1) % count), current);
+			double share = 100 * arc.doubleValue() / FingerTable.RING_SIZE.doubleValue();
+			int keys = keyCounts.get(current);
+			String where = process.isLocal(current) ? "this process" : addresses.get(current).getHostAddress();
+			double[] totals = processes.computeIfAbsent(where, key -> new double[3]);
+			totals[0]++;
+			totals[1] += share;
+			totals[2] += keys;
+			totalKeys += keys;
+			System.out.println("\t\t" + FingerTable.shortId(current) + "\t" + where + "\t" + String.format("%.2f", share) + "\t" + keys);
+		}
+		System.out.println("\t\t" + "Process \t" + "Nodes \t" + "Ring % \t" + "Keys");
+		for (Map.Entry<String, double[]> entry : processes.entrySet()) {
+			double[] totals = entry.getValue();
+			System.out.println("\t\t" + entry.getKey() + "\t" + (int) totals[0] + "\t" + String.format("%.2f", totals[1]) + "\t"
+					+ (int) totals[2]);
+		}
+		double mean = totalKeys / count;
+		double variance = 0;
+		for (int keys : keyCounts.values()) {
+			variance += (keys - mean) * (keys - mean) / count;
+		}
+		System.out.println(String.format("Keys per node: mean %.1f, variance %.1f, std dev %.1f (%.1f%% of mean)", mean, variance,
+				Math.sqrt(variance), mean == 0 ? 0 : 100 * Math.sqrt(variance) / mean));
+		System.out.println("********************** END ************************");
+	}
 
+	//Returns true if the node looking for is between the actual and successor node.
+	public boolean checkBetweenNodes(BigInteger startNode, BigInteger endNode, BigInteger actualNode) {
+		return RingMath.inHalfOpen(startNode, endNode, actualNode);
+	}
+
+	//Finds the distance between any two nodes in the network
+	public BigInteger distanceBetweenNodes(BigInteger sourceId, BigInteger destId) {
+		return RingMath.distance(sourceId, destId);
+	}
+
+	//Sends the file to be inserted on to the next node on its way to the owner
+	public void transferFileToNode(BigInteger idToBeInserted, BigInteger successorID, String file, long traceId) {
+		try {
+			RequestConnection connection = connectionPool.get(successorID);
+			if (traceId != 0) {
+				Tracer.record(traceId, guid, Message.INSERT_FILE, "routed " + file + " to " + FingerTable.shortId(successorID));
 			}
+			Message insert = new Message(Message.INSERT_FILE, idToBeInserted, file);
+			insert.traceId = traceId;
+			connection.send(insert);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (ClassNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} finally {
+			INSERT_FAILURES.increment();
+			System.err.println("Cannot send " + file + " on to " + FingerTable.shortId(successorID) + ": " + e.getMessage());
+		}
+	}
+
+	private static KeyValue[] toArray(ArrayList<KeyValue> entries) {
+		return entries.toArray(new KeyValue[entries.size()]);
+	}
 
+	//Pushes every entry this node owns to the node in chunks, each one acknowledged before the
+	//next is sent. A broken connection is reopened and the transfer resumes after the last
+	//acknowledged key. Replicas of the predecessors' keys are left out, the successors already
+	//hold them. Only when no predecessor was ever known is everything held here sent.
+	private void handOffAll(BigInteger nodeId) throws IOException {
+		BigInteger predecessor = this.predecessor;
+		if (predecessor == null) {
+			predecessor = lastPredecessor;
+		}
+		BigInteger cursor = predecessor == null ? guid : predecessor;
+		int failures = 0;
+		while (true) {
+			ArrayList<KeyValue> chunk = storage.page(cursor, guid, HANDOFF_CHUNK_BYTES);
+			if (chunk.isEmpty()) {
+				return;
+			}
+			try {
+				await(connectionPool.get(nodeId).request(new Message(Message.TRANSFER_FILES, (Object) toArray(chunk))));
+			} catch (IOException e) {
+				if (++failures >= HANDOFF_ATTEMPTS) {
+					throw e;
+				}
+				connectionPool.remove(nodeId);
+				continue;
+			}
+			failures = 0;
+			cursor = FingerTable.hash(chunk.get(chunk.size() - 1).key);
+			if (cursor.equals(guid)) {
+				return;
+			}
+		}
+	}
+
+	//Stores every entry received from another node, unless a newer version is already stored
+	//or the key was deleted here after the entry was written
+	private void storeAll(KeyValue[] entries) {
+		for (KeyValue entry : entries) {
+			synchronized (tombstones) {
+				Long deleted = tombstones.get(entry.key);
+				if (deleted == null || deleted < entry.version) {
+					storage.putIfNewer(entry);
+				}
+			}
 		}
 	}
 
-	//Catching the response for the query sent for searching a file in the network. 
-	public void searchFileQueryResponse(String message, InetAddress sourceAddress) {
+	//Deletes the key unless it was written after the delete, and keeps a tombstone so that
+	//older copies of the key received later are not stored again
+	private boolean deleteIfOlder(String key, long version) {
+		synchronized (tombstones) {
+			tombstones.merge(key, version, Math::max);
+			return storage.deleteIfOlder(key, version);
+		}
+	}
+
+	//Flushes the local store, called when the node shuts down
+	public void closeStorage() {
+		storage.close();
+	}
+
+	//Get files from the successor when a node comes online. The partition is pulled in chunks
+	//so that neither side holds it in memory at once; each request acknowledges the chunks
+	//before it, and a broken connection resumes after the last chunk received. Nothing is
+	//pulled once a pull since the last join has finished; a pull which fails is tried again by
+	//the maintenance thread.
+	@SuppressWarnings("unchecked")
+	public synchronized void getFilesFromSuccessor() {
 		try {
-			Socket socket = new Socket(sourceAddress, LISTENING_PORT);
-			ObjectOutputStream opStream = new ObjectOutputStream(socket.getOutputStream());
-			opStream.writeObject("Query response");
-			opStream.writeObject(message);
+			if (isOnline && partitionPending) {
+				BigInteger successorID = fingerTable.successor();
+				if (!successorID.equals(guid)) {
+					Tracer.event(guid, Message.GET_FILES, "getting files from " + FingerTable.shortId(successorID));
+					handoffCursor = successorID;
+					handoffSource = successorID;
+					int failures = 0;
+					while (true) {
+						BigInteger after = handoffCursor;
+						// Keys kept from an earlier run are listed with their versions so the
+						// successor only sends what changed while this node was away
+						KeyValue[] held = toArray(storage.digest(after, guid, HANDOFF_DIGEST_KEYS));
+						Message response;
+						try {
+							response = await(connectionPool.get(successorID)
+									.request(new Message(Message.GET_FILES, guid, after, held)));
+						} catch (IOException e) {
+							if (++failures >= HANDOFF_ATTEMPTS) {
+								throw e;
+							}
+							connectionPool.remove(successorID);
+							continue;
+						}
+						failures = 0;
+						storeAll((KeyValue[]) response.get(0));
+						HashMap<String, Long> heldVersions = new HashMap<String, Long>();
+						for (KeyValue entry : held) {
+							heldVersions.put(entry.key, entry.version);
+						}
+						// Gone at the successor, unless written here again since the digest or
+						// written while this node was in the network
+						for (String key : (ArrayList<String>) response.get(1)) {
+							Long version = heldVersions.get(key);
+							if (version != null) {
+								storage.deleteIfOlder(key, Math.min(version + 1, joinedVersion));
+							}
+						}
+						if (after.equals(guid)) {
+							break;
+						}
+						handoffCursor = (BigInteger) response.get(2);
+					}
+					partitionPending = false;
+					PARTITION_PULLS.increment();
+					Tracer.event(guid, Message.GET_FILES, "all files received from " + FingerTable.shortId(successorID));
+				}
+
+			}
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			// Still pending, so maintenance pulls it again in a later round
+			HANDOFF_FAILURES.increment();
+			System.err.println("Cannot get files from successor: " + e.getMessage());
 		} finally {
+			handoffSource = null;
+		}
+	}
 
+	//Serves one chunk of a partition handoff to a joining predecessor. Everything up to the
+	//requested position has been received by the predecessor, and is dropped here unless
+	//this node keeps it as a replica.
+	private Message handOffChunk(Message request) {
+		BigInteger incomingId = (BigInteger) request.get(0);
+		BigInteger after = (BigInteger) request.get(1);
+		KeyValue[] held = (KeyValue[]) request.get(2);
+		// With replication this node stays a replica of the keys it hands over
+		if (!after.equals(guid) && REPLICAS < 2) {
+			storage.extractRange(guid, after);
+		}
+		if (after.equals(incomingId)) {
+			return request.reply(new KeyValue[0], new ArrayList<String>(), incomingId);
+		}
+		// A full digest only covers the keys up to its last one, so the chunk stops there too
+		BigInteger limit = held.length >= HANDOFF_DIGEST_KEYS ? FingerTable.hash(held[held.length - 1].key)
+				: incomingId;
+		ArrayList<KeyValue> chunk = storage.page(after, limit, HANDOFF_CHUNK_BYTES);
+		int bytes = 0;
+		for (KeyValue entry : chunk) {
+			bytes += entry.value.length;
+		}
+		BigInteger chunkEnd = bytes >= HANDOFF_CHUNK_BYTES ? FingerTable.hash(chunk.get(chunk.size() - 1).key) : limit;
+		HashMap<String, Long> heldVersions = new HashMap<String, Long>();
+		for (KeyValue entry : held) {
+			if (checkBetweenNodes(after, chunkEnd, FingerTable.hash(entry.key))) {
+				heldVersions.put(entry.key, entry.version);
+			}
 		}
+		ArrayList<KeyValue> changed = new ArrayList<KeyValue>();
+		for (KeyValue entry : chunk) {
+			Long version = heldVersions.remove(entry.key);
+			if (version == null || version != entry.version) {
+				changed.add(entry);
+			}
+		}
+		// Keys the predecessor still holds but which are gone here were deleted meanwhile
+		return request.reply(toArray(changed), new ArrayList<String>(heldVersions.keySet()), chunkEnd);
 	}
-	
-	//Thread which listens to all the incoming calls from other nodes and server in the network
+
+	//Serves a single message received from another node or the server, handed over by the
+	//process hosting this node
 	@SuppressWarnings("unchecked")
 	@Override
-	public void run() {
-		// TODO Auto-generated method stub
+	public void handleMessage(Message message, Connection connection) {
+		if (message.traceId != 0) {
+			Tracer.record(message.traceId, guid, message.opcode, "received from " + connection.getRemoteAddress());
+		}
 		try {
-			ServerSocket listeningSocket = new ServerSocket(LISTENING_PORT);
-			while (true) {
-				Socket socket = listeningSocket.accept();
-				ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
-				switch ((String) inputStream.readObject()) {
-				case "Finger Table":
-					liveNodes = (TreeMap<Integer, InetAddress>) inputStream.readObject();
-					System.out.println("Received livenodes");
-					constructFingerTable();
-					faultToleranceHandler.successorID = fingerTable.successorTable.get(fingerTable.firstActualNode);
-					if (isFirst) {
-						isFirst = false;
-						getFilesFromSuccessor();
-					}
-					break;
-				case "Insert file":
-					int id = (int) inputStream.readObject();
-					String file = (String) inputStream.readObject();
-					System.out.println("Insert file at :" + id);
-					System.out.println("File: " + file);
-					insertFileAtID(id, file);
-					break;
-				case "Transferring files":
-					ArrayList<String> tempFiles = (ArrayList<String>) inputStream.readObject();
-					for (String string : tempFiles) {
-						files.add(string);
-					}
-					System.out.println("Files received from predecessor");
-					break;
-				case "Get files":
-					System.out.println("Giving back the files to predecessor");
-					ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
-					int incomingId = (int) inputStream.readObject();
-					ArrayList<String> preFiles = new ArrayList<String>();
-					Iterator<String> iter = files.iterator();
-					while (iter.hasNext()) {
-						String fileToBeAdded = iter.next();
-						int fileID = Math.abs(fileToBeAdded.hashCode() % 16);
-						if (checkBetweenNodes(guid, incomingId, fileID)) {
-							preFiles.add(fileToBeAdded);
-							iter.remove();
+			switch (message.opcode) {
+			case Message.FIND_SUCCESSOR:
+				findSuccessor((BigInteger) message.get(0), message.traceId).whenComplete((node, error) -> {
+					try {
+						if (error != null) {
+							connection.reply(message, null, null, null, null, error.getMessage());
+						} else {
+							long[] hopNanos = new long[node.hopNanos.size()];
+							for (int i = 0; i < hopNanos.length; i++) {
+								hopNanos[i] = node.hopNanos.get(i);
+							}
+							connection.reply(message, node.id, addressOf(node.id), hopNanos, node.rangeStart);
 						}
+					} catch (IOException e) {
+						replyFailed(message, e);
 					}
-					outputStream.writeObject(preFiles);
-					System.out.println("All files transferred to predecessor");
-					break;
-				case "Query file":
-					InetAddress sourceAddress = (InetAddress) inputStream.readObject();
-					String searchFile = (String) inputStream.readObject();
-					int fileID = (int) inputStream.readObject();
-					String message;
-					if (files.contains(searchFile)) {
-						message = "File :" + searchFile + " found at :" + guid;
-						searchFileQueryResponse(message, sourceAddress);
-					} else if (fileID == guid) {
-						message = "File :" + searchFile + " not found in the network";
-						searchFileQueryResponse(message, sourceAddress);
-					} else {
-						searchFile(sourceAddress, fileID, searchFile);
-					}
-					break;
-				case "Query response":
-					System.out.println((String) inputStream.readObject());
+				});
+				break;
+			case Message.GET_PREDECESSOR:
+				BigInteger currentPredecessor = predecessor;
+				connection.reply(message, currentPredecessor, addressOf(currentPredecessor), successorMap(),
+						predecessorMap());
+				break;
+			case Message.STATS:
+				connection.reply(message, stats());
+				break;
+			case Message.SCAN:
+				connection.reply(message, scanPage(message));
+				break;
+			case Message.NOTIFY:
+				failureDetector.heartbeat((BigInteger) message.get(0));
+				notified((BigInteger) message.get(0), connection.getRemoteAddress());
+				break;
+			case Message.PING:
+				connection.reply(message);
+				break;
+			case Message.CLOSEST_PRECEDING:
+				connection.reply(message, localStep((BigInteger) message.get(0)).payload);
+				break;
+			case Message.LEAVE:
+				neighbourLeaving(message);
+				break;
+			case Message.REPLICATE:
+				storeAll((KeyValue[]) message.get(0));
+				for (KeyValue tombstone : (KeyValue[]) message.get(1)) {
+					deleteIfOlder(tombstone.key, tombstone.version);
+				}
+				if (message.requestId != 0) {
+					connection.reply(message);
+				}
+				break;
+			case Message.INSERT_FILE:
+				BigInteger id = (BigInteger) message.get(0);
+				insertFileAtID(id, (String) message.get(1), message.traceId);
+				break;
+			case Message.TRANSFER_FILES:
+				storeAll((KeyValue[]) message.get(0));
+				connection.reply(message);
+				break;
+			case Message.GET_FILES:
+				// Files between this node and the new predecessor now belong to the predecessor
+				connection.send(handOffChunk(message));
+				break;
+			case Message.MULTI_PUT:
+			case Message.MULTI_GET:
+				connection.reply(message, applyBatch(message));
+				break;
+			case Message.INVALIDATE:
+				valueCache.invalidate((String) message.get(0), (Long) message.get(1));
+				break;
+			case Message.QUERY_FILE:
+			case Message.PUT:
+			case Message.GET:
+			case Message.CACHED_GET:
+			case Message.DELETE:
+				if (message.direct && !isResponsibleFor(FingerTable.hash((String) message.get(0)))) {
+					// Sent from a stale route cache entry, the sender looks the owner up again
+					connection.reply(message, null, Message.NOT_OWNER);
 					break;
 				}
+				if (message.opcode == Message.CACHED_GET && message.direct) {
+					addresses.putIfAbsent((BigInteger) message.get(1), connection.getRemoteAddress());
+				}
+				routeRequest(message).whenComplete((result, error) -> {
+					try {
+						if (error != null) {
+							connection.reply(message, null, error.getMessage());
+						} else {
+							connection.reply(message, result.payload);
+						}
+					} catch (IOException e) {
+						replyFailed(message, e);
+					}
+				});
+				break;
 			}
-
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (ClassNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} finally {
-
+			replyFailed(message, e);
 		}
+	}
 
+	//Records a response which could not be sent, the requester times the request out
+	private void replyFailed(Message message, IOException e) {
+		REPLY_FAILURES.increment();
+		System.err.println("Cannot answer " + Message.name(message.opcode) + ": " + e.getMessage());
 	}
 
 }
 
 //Fault tolerance thread. This thread gets triggered only when JVM shuts down unexpectedly. 
 class FaultToleranceHandler extends Thread {
-	public Peer node;
-	public int successorID;
+	public PeerProcess process;
 
-	public FaultToleranceHandler(Peer node) {
+	public FaultToleranceHandler(PeerProcess process) {
 		// TODO Auto-generated constructor stub
-		this.node = node;
+		this.process = process;
 	}
 
 	@Override
 	public void run() {
 		// TODO Auto-generated method stub
 		System.out.println("");
-		if (node.isOnline) {
-			node.FaultToleranceLeaveNetwork(successorID);
+		for (Peer node : process.nodes()) {
+			if (node.isOnline) {
+				node.FaultToleranceLeaveNetwork();
+			}
+			node.closeStorage();
 		}
 		System.out.println("Unexpected shutdown");
 
@@ -0,0 +1,251 @@
+package chord;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Long lived connection between two nodes. Any number of requests can be in flight on one
+ * connection; responses are matched to their requests using the request id. Incoming requests
+ * are handed to the message handler of the node owning the connection. Connecting, every write
+ * and every request give up after -Dchord.timeout milliseconds, so a hung node cannot block its
+ * callers: a write still blocked then, on a node which stopped reading, closes the connection.
+ */
+
+public class PeerConnection implements RequestConnection, Runnable {
+	public static final long TIMEOUT = Long.getLong("chord.timeout", 3000);
+	private static final LongAdder WRITE_TIMEOUTS = Metrics.counter("chord_write_timeouts_total", "",
+			"Connections closed because a write was blocked for longer than the timeout");
+	// One thread closes the connections of the process whose writes do not finish in time.
+	// Writes done in time take their deadline off it at once.
+	private static final ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1, runnable -> {
+		Thread thread = new Thread(runnable, "write-watchdog");
+		thread.setDaemon(true);
+		return thread;
+	});
+	static {
+		watchdog.setRemoveOnCancelPolicy(true);
+	}
+	private Socket socket;
+	private DataOutputStream outputStream;
+	private DataInputStream inputStream;
+	private MessageHandler handler;
+	// Requests are served on the reader thread itself when there is no executor
+	private Executor requestExecutor;
+	private Map<Long, CompletableFuture<Message>> pendingRequests;
+	private AtomicLong nextRequestId;
+	private Thread readerThread;
+	private volatile long lastUsed;
+	private volatile boolean closed = false;
+	// Virtual node the requests sent on this connection are meant for
+	private BigInteger target;
+
+	public PeerConnection(Socket socket, MessageHandler handler) throws IOException {
+		this(socket, handler, null);
+	}
+
+	public PeerConnection(Socket socket, MessageHandler handler, Executor requestExecutor) throws IOException {
+		this.socket = socket;
+		this.handler = handler;
+		this.requestExecutor = requestExecutor;
+		pendingRequests = new ConcurrentHashMap<Long, CompletableFuture<Message>>();
+		nextRequestId = new AtomicLong(1);
+		socket.setTcpNoDelay(true);
+		outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		lastUsed = System.currentTimeMillis();
+	}
+
+	//Connects to the node at the address and starts reading from the connection
+	public static PeerConnection open(InetAddress address, int port, MessageHandler handler) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(address, port), (int) TIMEOUT);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		PeerConnection connection = new PeerConnection(socket, handler);
+		connection.start();
+		return connection;
+	}
+
+	@Override
+	public void setTarget(BigInteger nodeId) {
+		target = nodeId;
+	}
+
+	//Starts the thread reading messages from this connection
+	public void start() {
+		readerThread = new Thread(this, "connection-" + socket.getRemoteSocketAddress());
+		readerThread.setDaemon(true);
+		readerThread.start();
+	}
+
+	//Runs the reader on a thread of the given executor instead of a dedicated thread
+	public void start(Executor readers) {
+		readers.execute(this);
+	}
+
+	//Sends a message without waiting for any response
+	@Override
+	public void send(Message message) throws IOException {
+		write(message);
+	}
+
+	@Override
+	public CompletableFuture<Message> request(Message message) {
+		return request(message, TIMEOUT);
+	}
+
+	@Override
+	public CompletableFuture<Message> request(Message message, long timeoutMillis) {
+		CompletableFuture<Message> response = new CompletableFuture<Message>();
+		long requestId = nextRequestId.getAndIncrement();
+		message.requestId = requestId;
+		pendingRequests.put(requestId, response);
+		// The timeout counts from before the write, which may itself wait on a slow node
+		response.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+				.whenComplete((reply, error) -> pendingRequests.remove(requestId));
+		try {
+			write(message);
+		} catch (IOException e) {
+			response.completeExceptionally(e);
+		}
+		return response;
+	}
+
+	//Sends the response for a request received on this connection
+	@Override
+	public void reply(Message request, Object... payload) throws IOException {
+		write(request.reply(payload));
+	}
+
+	private void write(Message message) throws IOException {
+		if (closed) {
+			throw new IOException("Connection to " + socket.getRemoteSocketAddress() + " is closed");
+		}
+		lastUsed = System.currentTimeMillis();
+		ByteBuffer frame = WireCodec.encode(message, message.isResponse || target == null ? message.target : target);
+		// Armed before taking the lock, so waiting behind another blocked write counts too.
+		// Closing the socket makes the blocked write fail.
+		ScheduledFuture<?> deadline = watchdog.schedule(this::writeTimedOut, TIMEOUT, TimeUnit.MILLISECONDS);
+		try {
+			synchronized (outputStream) {
+				outputStream.write(frame.array(), frame.arrayOffset(), frame.limit());
+				outputStream.flush();
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		} finally {
+			deadline.cancel(false);
+		}
+	}
+
+	//Closes the connection when a write on it did not finish in time
+	private void writeTimedOut() {
+		if (!closed) {
+			WRITE_TIMEOUTS.increment();
+			System.err.println("Closing connection to " + socket.getRemoteSocketAddress() + ": write blocked for "
+					+ TIMEOUT + " ms");
+			close();
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!closed) {
+				Message message = readFrame();
+				lastUsed = System.currentTimeMillis();
+				if (message.isResponse) {
+					CompletableFuture<Message> response = pendingRequests.remove(message.requestId);
+					if (response != null) {
+						response.complete(message);
+					}
+				} else if (requestExecutor != null) {
+					requestExecutor.execute(() -> handler.handleMessage(message, this));
+				} else {
+					handler.handleMessage(message, this);
+				}
+			}
+		} catch (IOException e) {
+			// Other side closed the connection
+		} catch (IllegalArgumentException | BufferUnderflowException e) {
+			// Malformed frame
+			System.err.println("Dropping connection to " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+		} finally {
+			close();
+		}
+	}
+
+	//Reads one length prefixed frame and decodes it
+	private Message readFrame() throws IOException {
+		int length = inputStream.readInt();
+		if (length <= 0 || length > WireCodec.MAX_FRAME_LENGTH) {
+			throw new IllegalArgumentException("Invalid frame length " + length);
+		}
+		byte[] frame = new byte[length];
+		inputStream.readFully(frame);
+		return WireCodec.decode(ByteBuffer.wrap(frame));
+	}
+
+	@Override
+	public InetAddress getRemoteAddress() {
+		return socket.getInetAddress();
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	@Override
+	public int pendingRequestCount() {
+		return pendingRequests.size();
+	}
+
+	//Closes the socket and fails every request still waiting for a response
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		IOException closedException = new IOException("Connection to " + socket.getRemoteSocketAddress() + " closed");
+		for (CompletableFuture<Message> response : pendingRequests.values()) {
+			response.completeExceptionally(closedException);
+		}
+		pendingRequests.clear();
+	}
+}
+
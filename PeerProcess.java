@@ -0,0 +1,84 @@
+package chord;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * A node process hosting one or more virtual nodes of the ring. The virtual nodes share the
+ * process's transport, listening socket and server threads; each one has its own finger table,
+ * successor list, connections and storage, and joins and leaves the ring on its own. Requests
+ * carry the id of the virtual node they are meant for and are handed to it here.
+ *
+ * A process hosts -Dchord.vnodes virtual nodes for each unit of its -Dchord.capacity (both
+ * default to 1). Every virtual node owns about the same share of the ring, so a process with
+ * twice the capacity owns about twice the keys and takes twice the ranges when nodes join.
+ */
+
+public class PeerProcess implements MessageHandler {
+	public static final String VNODES_PROPERTY = "chord.vnodes";
+	public static final String CAPACITY_PROPERTY = "chord.capacity";
+	// Port every node listens on and the port of the LookUp server
+	public static final int LISTENING_PORT = Integer.getInteger("chord.port", 8000);
+	public static final int SEED_PORT = Integer.getInteger("chord.seed.port", 5000);
+	private CopyOnWriteArrayList<Peer> nodes;
+	private ConcurrentHashMap<BigInteger, Peer> nodesById;
+	private Transport transport;
+
+	public PeerProcess() throws IOException {
+		this(new TcpTransport());
+	}
+
+	//Process reaching other processes through the transport, listening on the node port. Fails
+	//when the port cannot be listened on, rather than run a process no node can reach.
+	public PeerProcess(Transport transport) throws IOException {
+		this.transport = transport;
+		nodes = new CopyOnWriteArrayList<Peer>();
+		nodesById = new ConcurrentHashMap<BigInteger, Peer>();
+		transport.listen(LISTENING_PORT, this);
+	}
+
+	public Transport transport() {
+		return transport;
+	}
+
+	//Number of virtual nodes for the capacity given at startup
+	public static int virtualNodeCount() {
+		int perUnit = Integer.getInteger(VNODES_PROPERTY, 1);
+		double capacity = Double.parseDouble(System.getProperty(CAPACITY_PROPERTY, "1"));
+		return Math.max(1, (int) Math.round(perUnit * capacity));
+	}
+
+	//Name of the i-th of count virtual nodes of a process
+	public static String virtualNodeName(String name, int i, int count) {
+		return count == 1 ? name : name + "#" + i;
+	}
+
+	public void add(Peer node) {
+		nodes.add(node);
+		nodesById.put(node.getGuid(), node);
+	}
+
+	//Virtual nodes in the order they were added
+	public ArrayList<Peer> nodes() {
+		return new ArrayList<Peer>(nodes);
+	}
+
+	public boolean isLocal(BigInteger nodeId) {
+		return nodesById.containsKey(nodeId);
+	}
+
+	//Hands the message to the virtual node it is meant for. Messages without a target go to the
+	//first one; messages for a node this process does not host are dropped, so their sender
+	//times out as it would for a failed node.
+	@Override
+	public void handleMessage(Message message, Connection connection) {
+		Peer node = message.target != null ? nodesById.get(message.target) : nodes.isEmpty() ? null : nodes.get(0);
+		if (node != null) {
+			node.handleMessage(message, connection);
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package chord;
+
+import java.math.BigInteger;
+import java.util.concurrent.CompletableFuture;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Connection opened to another process, on which requests are sent and matched with their
+ * responses. Opened by a Transport.
+ */
+
+public interface RequestConnection extends Connection {
+	//Sends a request and returns a future completed with the matching response, or failed
+	//with a TimeoutException when no response arrives within the default timeout
+	CompletableFuture<Message> request(Message message);
+
+	CompletableFuture<Message> request(Message message, long timeoutMillis);
+
+	//Sends every request on this connection to the given virtual node of the other process
+	void setTarget(BigInteger nodeId);
+
+	long getLastUsed();
+
+	int pendingRequestCount();
+}
@@ -0,0 +1,109 @@
+package chord;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Ring interval walks shared by the storage engines. Every engine indexes its keys by ring id
+ * in a sorted map and differs only in what the map holds, an entry or where its value lives,
+ * so the walks take a reader turning what the map holds into an entry. Callers hold whatever
+ * lock their engine needs around the walk.
+ */
+
+final class RingIndex {
+
+	private RingIndex() {
+	}
+
+	//Entries whose ids are in the ring interval (start, end], see StorageEngine.range
+	static <V> ArrayList<KeyValue> range(NavigableMap<BigInteger, V> index, BigInteger start, BigInteger end,
+			Function<V, KeyValue> reader) {
+		ArrayList<KeyValue> inRange = new ArrayList<KeyValue>();
+		for (NavigableMap<BigInteger, V> part : rangeParts(index, start, end)) {
+			for (V stored : part.values()) {
+				inRange.add(reader.apply(stored));
+			}
+		}
+		return inRange;
+	}
+
+	//Reads and then removes every entry in the ring interval (start, end]. The remover takes
+	//the entry out of the index along with whatever else the engine keeps for it.
+	static <V> ArrayList<KeyValue> extractRange(NavigableMap<BigInteger, V> index, BigInteger start, BigInteger end,
+			Function<V, KeyValue> reader, BiConsumer<BigInteger, V> remover) {
+		ArrayList<KeyValue> extracted = new ArrayList<KeyValue>();
+		for (NavigableMap<BigInteger, V> part : rangeParts(index, start, end)) {
+			for (Map.Entry<BigInteger, V> entry : part.entrySet()) {
+				extracted.add(reader.apply(entry.getValue()));
+				remover.accept(entry.getKey(), entry.getValue());
+			}
+		}
+		return extracted;
+	}
+
+	//The first maxKeys entries of the ring interval (start, end] as read by the reader, which
+	//leaves the values out, see StorageEngine.digest
+	static <V> ArrayList<KeyValue> digest(NavigableMap<BigInteger, V> index, BigInteger start, BigInteger end, int maxKeys,
+			Function<V, KeyValue> reader) {
+		ArrayList<KeyValue> digest = new ArrayList<KeyValue>();
+		for (NavigableMap<BigInteger, V> part : rangeParts(index, start, end)) {
+			for (V stored : part.values()) {
+				if (digest.size() >= maxKeys) {
+					return digest;
+				}
+				digest.add(reader.apply(stored));
+			}
+		}
+		return digest;
+	}
+
+	//The first entries of the ring interval (start, end], or of the whole ring after start when
+	//start equals end, until their values add up to maxBytes, see StorageEngine.page
+	static <V> ArrayList<KeyValue> page(NavigableMap<BigInteger, V> index, BigInteger start, BigInteger end, int maxBytes,
+			Function<V, KeyValue> reader) {
+		ArrayList<KeyValue> page = new ArrayList<KeyValue>();
+		int bytes = 0;
+		for (NavigableMap<BigInteger, V> part : ringParts(index, start, end)) {
+			for (V stored : part.values()) {
+				if (bytes >= maxBytes) {
+					return page;
+				}
+				KeyValue entry = reader.apply(stored);
+				page.add(entry);
+				bytes += entry.value.length;
+			}
+		}
+		return page;
+	}
+
+	//Views of the map covering (start, end]. An interval wrapping past zero is split in two.
+	static <V> ArrayList<NavigableMap<BigInteger, V>> rangeParts(NavigableMap<BigInteger, V> map, BigInteger start,
+			BigInteger end) {
+		ArrayList<NavigableMap<BigInteger, V>> parts = new ArrayList<NavigableMap<BigInteger, V>>(2);
+		int startToEnd = start.compareTo(end);
+		if (startToEnd < 0) {
+			parts.add(map.subMap(start, false, end, true));
+		} else if (startToEnd > 0) {
+			parts.add(map.tailMap(start, false));
+			parts.add(map.headMap(end, true));
+		}
+		return parts;
+	}
+
+	//Same as rangeParts, except that the whole ring after start is covered when start equals end
+	static <V> ArrayList<NavigableMap<BigInteger, V>> ringParts(NavigableMap<BigInteger, V> map, BigInteger start,
+			BigInteger end) {
+		if (!start.equals(end)) {
+			return rangeParts(map, start, end);
+		}
+		ArrayList<NavigableMap<BigInteger, V>> parts = new ArrayList<NavigableMap<BigInteger, V>>(2);
+		parts.add(map.tailMap(start, false));
+		parts.add(map.headMap(end, true));
+		return parts;
+	}
+}
@@ -0,0 +1,112 @@
+package chord;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Modular interval and distance arithmetic on the identifier ring. All checks are
+ * constant time, so they do not depend on the size of the identifier space.
+ */
+
+public final class RingMath {
+
+	private RingMath() {
+	}
+
+	//Returns true if id is in the interval (start, end] walking clockwise from start.
+	//When start equals end the interval is empty, same as walking zero steps.
+	public static boolean inHalfOpen(BigInteger start, BigInteger end, BigInteger id) {
+		int startToEnd = start.compareTo(end);
+		if (startToEnd == 0) {
+			return false;
+		}
+		if (startToEnd < 0) {
+			return id.compareTo(start) > 0 && id.compareTo(end) <= 0;
+		}
+		return id.compareTo(start) > 0 || id.compareTo(end) <= 0;
+	}
+
+	//Returns true if id is in the open interval (start, end). When start equals end the
+	//interval is the whole ring except start itself.
+	public static boolean inOpen(BigInteger start, BigInteger end, BigInteger id) {
+		int startToEnd = start.compareTo(end);
+		if (startToEnd == 0) {
+			return !id.equals(start);
+		}
+		if (startToEnd < 0) {
+			return id.compareTo(start) > 0 && id.compareTo(end) < 0;
+		}
+		return id.compareTo(start) > 0 || id.compareTo(end) < 0;
+	}
+
+	//Clockwise distance from source to destination. A node is a full lap away from
+	//itself, which keeps the result in the range [1, ringSize].
+	public static BigInteger distance(BigInteger sourceId, BigInteger destId, BigInteger ringSize) {
+		BigInteger distance = destId.subtract(sourceId).mod(ringSize);
+		if (distance.signum() == 0) {
+			return ringSize;
+		}
+		return distance;
+	}
+
+	public static BigInteger distance(BigInteger sourceId, BigInteger destId) {
+		return distance(sourceId, destId, FingerTable.RING_SIZE);
+	}
+
+	//Original ring walking check, kept only as the reference for the property checks
+	private static boolean walkBetween(int startNode, int endNode, int actualNode, int ringSize) {
+		int i = startNode;
+		while (i != endNode) {
+			i = (i + 1) % ringSize;
+			if (i == actualNode) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	//Original counting distance, kept only as the reference for the property checks
+	private static int walkDistance(int sourceId, int destId, int ringSize) {
+		int distance = 1;
+		while ((distance + sourceId) % ringSize != destId) {
+			distance++;
+		}
+		return distance;
+	}
+
+	//Randomized property checks of the arithmetic versions against the ring walking
+	//versions on small rings. Usage: java chord.RingMath [iterations]
+	public static void main(String[] args) {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		Random random = new Random(42);
+		for (int n = 0; n < iterations; n++) {
+			int ringSize = 1 + random.nextInt(64);
+			int start = random.nextInt(ringSize);
+			int end = random.nextInt(ringSize);
+			int id = random.nextInt(ringSize);
+			BigInteger bigStart = BigInteger.valueOf(start);
+			BigInteger bigEnd = BigInteger.valueOf(end);
+			BigInteger bigId = BigInteger.valueOf(id);
+
+			check(inHalfOpen(bigStart, bigEnd, bigId) == walkBetween(start, end, id, ringSize),
+					"inHalfOpen", start, end, id, ringSize);
+			boolean open = start == end ? id != start : walkBetween(start, end, id, ringSize) && id != end;
+			check(inOpen(bigStart, bigEnd, bigId) == open, "inOpen", start, end, id, ringSize);
+			check(distance(bigStart, bigEnd, BigInteger.valueOf(ringSize)).intValue() == walkDistance(start, end, ringSize),
+					"distance", start, end, id, ringSize);
+			// Moving distance(start, id) steps from start always lands on id
+			BigInteger steps = distance(bigStart, bigId, BigInteger.valueOf(ringSize));
+			check(bigStart.add(steps).mod(BigInteger.valueOf(ringSize)).equals(bigId), "distance lap", start, end, id,
+					ringSize);
+		}
+		System.out.println("All " + iterations + " ring arithmetic checks passed");
+	}
+
+	private static void check(boolean condition, String name, int start, int end, int id, int ringSize) {
+		if (!condition) {
+			throw new AssertionError(name + " failed for start=" + start + " end=" + end + " id=" + id + " ring="
+					+ ringSize);
+		}
+	}
+}
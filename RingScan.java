@@ -0,0 +1,185 @@
+package chord;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Scan of the keys in a ring interval. The interval is split into segments which are walked
+ * -Dchord.scan.parallelism at a time (4 by default). A segment starts at the owner of its first
+ * id and is pulled from each node in pages of at most PAGE_KEYS keys, in ring order; once a
+ * node's share is done the walk moves on to the successor the node answered with. The next
+ * page is only asked for after the consumer has taken the last one, so a slow consumer slows
+ * the scan down instead of piling pages up. Pages are taken on the scan threads, never on the
+ * thread reading a connection, so a slow consumer holds up no other response on it.
+ *
+ * Keys are placed by the hash of their name, so a scan for a prefix filters at each node over
+ * the whole ring. Keys moving between nodes while a scan runs may be missed or seen twice.
+ */
+
+public class RingScan {
+	public static final int PAGE_KEYS = Integer.getInteger("chord.scan.page", 1000);
+	private static final int PARALLELISM = Integer.getInteger("chord.scan.parallelism", 4);
+	// Times a segment looks its next node up again after being turned down or not answered
+	private static final int ATTEMPTS = 3;
+	// Threads handing pages to the consumers of every scan, one per segment being walked
+	private static final ExecutorService pages = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "chord-scan");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private Nodes nodes;
+	private String prefix;
+	private BiConsumer<String, byte[]> consumer;
+	// Segment boundaries, segment i being the interval (bounds[i], bounds[i + 1]]
+	private ArrayList<BigInteger> bounds;
+	private AtomicInteger nextSegment = new AtomicInteger();
+	private AtomicInteger running = new AtomicInteger();
+	private CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+	//Where a segment's walk is: the node to ask next and the last id done
+	private static class Walk {
+		NodeRef node;
+		BigInteger cursor;
+		BigInteger end;
+		int attempt;
+
+		Walk(NodeRef node, BigInteger cursor, BigInteger end, int attempt) {
+			this.node = node;
+			this.cursor = cursor;
+			this.end = end;
+			this.attempt = attempt;
+		}
+	}
+
+	//How a scan reaches the ring, from a node or from a client
+	public interface Nodes {
+		//Node owning the id
+		CompletableFuture<NodeRef> owner(BigInteger id);
+
+		CompletableFuture<Message> request(NodeRef node, Message request);
+	}
+
+	private RingScan(Nodes nodes, BigInteger start, BigInteger end, String prefix, BiConsumer<String, byte[]> consumer) {
+		this.nodes = nodes;
+		this.prefix = prefix;
+		this.consumer = consumer;
+		// The whole ring is split in two at least, so that no segment starts where it ends
+		bounds = split(start, end, start.equals(end) ? Math.max(2, PARALLELISM) : PARALLELISM);
+	}
+
+	//Hands every key in the ring interval (start, end], the whole ring when start equals end,
+	//which starts with the prefix, null for any key, to the consumer with its value. The
+	//consumer is called from as many threads as segments are walked at once; within a segment
+	//keys come in ring order, and with a parallelism of 1 the whole scan is in ring order. The
+	//future completes once every segment is done, or fails with the first segment which could
+	//not be finished.
+	public static CompletableFuture<Void> scan(Nodes nodes, BigInteger start, BigInteger end, String prefix,
+			BiConsumer<String, byte[]> consumer) {
+		RingScan scan = new RingScan(nodes, start, end, prefix, consumer);
+		int walkers = Math.max(1, Math.min(PARALLELISM, scan.bounds.size() - 1));
+		scan.running.set(walkers);
+		for (int i = 0; i < walkers; i++) {
+			scan.nextSegment();
+		}
+		return scan.done;
+	}
+
+	//Boundaries splitting (start, end] into about equal segments. Segments too short to split
+	//are left out.
+	static ArrayList<BigInteger> split(BigInteger start, BigInteger end, int segments) {
+		// A full lap when start equals end
+		BigInteger length = RingMath.distance(start, end);
+		ArrayList<BigInteger> bounds = new ArrayList<BigInteger>();
+		bounds.add(start);
+		for (int i = 1; i < segments; i++) {
+			BigInteger bound = start.add(length.multiply(BigInteger.valueOf(i)).divide(BigInteger.valueOf(segments)))
+					.mod(FingerTable.RING_SIZE);
+			if (!bound.equals(bounds.get(bounds.size() - 1))) {
+				bounds.add(bound);
+			}
+		}
+		bounds.add(end);
+		return bounds;
+	}
+
+	//Starts walking the next segment, or finishes this walker when none is left
+	private void nextSegment() {
+		int segment = nextSegment.getAndIncrement();
+		if (segment >= bounds.size() - 1 || done.isDone()) {
+			if (running.decrementAndGet() == 0) {
+				done.complete(null);
+			}
+			return;
+		}
+		BigInteger start = bounds.get(segment);
+		BigInteger end = bounds.get(segment + 1);
+		relocate(start, end, 0);
+	}
+
+	//Looks up the node owning the first id after the cursor and continues the segment there
+	private void relocate(BigInteger cursor, BigInteger end, int attempt) {
+		nodes.owner(cursor.add(BigInteger.ONE).mod(FingerTable.RING_SIZE)).whenCompleteAsync((owner, error) -> {
+			if (error != null) {
+				fail(error);
+			} else {
+				pull(new Walk(owner, cursor, end, attempt));
+			}
+		}, pages);
+	}
+
+	//Asks for the next page of the segment and takes it on a scan thread, which then asks for
+	//the page after it. Each page is taken on a new task, so a long walk does not grow the stack.
+	private void pull(Walk walk) {
+		if (walk != null) {
+			nodes.request(walk.node, new Message(Message.SCAN, walk.cursor, walk.end, prefix, PAGE_KEYS))
+					.handleAsync((reply, error) -> taken(walk, reply, error), pages).thenAccept(this::pull);
+		}
+	}
+
+	//Hands the keys of the page to the consumer and returns where the segment goes on, or null
+	//when it is finished, failed or has to be looked up again
+	private Walk taken(Walk walk, Message reply, Throwable error) {
+		if (done.isDone()) {
+			// Another segment failed
+			return null;
+		}
+		if (error != null || reply.payload.length < 4) {
+			if (walk.attempt + 1 >= ATTEMPTS) {
+				fail(error != null ? error : new IOException((String) reply.get(1)));
+			} else {
+				relocate(walk.cursor, walk.end, walk.attempt + 1);
+			}
+			return null;
+		}
+		try {
+			for (KeyValue entry : (KeyValue[]) reply.get(0)) {
+				consumer.accept(entry.key, entry.value);
+			}
+		} catch (RuntimeException e) {
+			fail(e);
+			return null;
+		}
+		BigInteger reached = (BigInteger) reply.get(1);
+		if (reached.equals(walk.end)) {
+			nextSegment();
+			return null;
+		}
+		if (reached.equals(walk.node.id)) {
+			// The node's share is done, its successor holds the next ids
+			return new Walk(new NodeRef((BigInteger) reply.get(2), (InetAddress) reply.get(3)), reached, walk.end, 0);
+		}
+		return new Walk(walk.node, reached, walk.end, 0);
+	}
+
+	private void fail(Throwable error) {
+		done.completeExceptionally(error);
+	}
+}
@@ -0,0 +1,117 @@
+package chord;
+
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Bounded cache of ring intervals and the nodes owning them, filled from lookups so that a key
+ * in a recently resolved interval is sent straight to its owner. Intervals are indexed by their
+ * end, the owner's id, and the least recently used one is dropped when the cache is full. An
+ * entry may go stale when nodes join or leave; the owner then answers NOT_OWNER and the entry
+ * is invalidated.
+ *
+ * Every lookup reads the cache, so reads take no lock: the intervals are kept in a concurrent
+ * sorted map and each one records when it was last used. Only changes to the cache are
+ * serialized; a put into a full cache looks for the least recently used interval among all of
+ * them, which is cheap next to the lookup the put follows.
+ */
+
+public class RouteCache {
+	public static final String CAPACITY_PROPERTY = "chord.routecache";
+	public static final int DEFAULT_CAPACITY = 1024;
+	private int capacity;
+	// Cached intervals by owner id
+	private ConcurrentSkipListMap<BigInteger, Interval> byOwner;
+	// Number of intervals cached, kept by the writers since counting the map walks it
+	private volatile int size;
+	private LongAdder hits = new LongAdder();
+	private LongAdder misses = new LongAdder();
+
+	//An interval's owner and the time it was last read, in nanoseconds
+	private static final class Interval {
+		final NodeRef owner;
+		volatile long lastUsed;
+
+		Interval(NodeRef owner) {
+			this.owner = owner;
+			lastUsed = System.nanoTime();
+		}
+	}
+
+	public RouteCache() {
+		this(Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY));
+	}
+
+	public RouteCache(int capacity) {
+		this.capacity = capacity;
+		byOwner = new ConcurrentSkipListMap<BigInteger, Interval>();
+	}
+
+	//Owner of the interval holding the id, or null when no cached interval holds it
+	public NodeRef get(BigInteger id) {
+		Map.Entry<BigInteger, Interval> entry = byOwner.ceilingEntry(id);
+		if (entry == null) {
+			entry = byOwner.firstEntry();
+		}
+		if (entry != null && RingMath.inHalfOpen(entry.getValue().owner.rangeStart, entry.getKey(), id)) {
+			entry.getValue().lastUsed = System.nanoTime();
+			hits.increment();
+			return entry.getValue().owner;
+		}
+		misses.increment();
+		return null;
+	}
+
+	//Caches the interval (owner.rangeStart, owner.id], without the hops of the lookup which
+	//found it. Owners without a known interval start are not cached.
+	public synchronized void put(NodeRef found) {
+		if (found.rangeStart == null || capacity <= 0) {
+			return;
+		}
+		NodeRef owner = new NodeRef(found.id, found.address);
+		owner.rangeStart = found.rangeStart;
+		if (byOwner.put(owner.id, new Interval(owner)) == null) {
+			size++;
+		}
+		if (size > capacity) {
+			Map.Entry<BigInteger, Interval> eldest = null;
+			for (Map.Entry<BigInteger, Interval> entry : byOwner.entrySet()) {
+				if (eldest == null || entry.getValue().lastUsed < eldest.getValue().lastUsed) {
+					eldest = entry;
+				}
+			}
+			byOwner.remove(eldest.getKey());
+			size--;
+		}
+	}
+
+	//Drops the intervals owned by the node or starting at it, after it joined, left or failed
+	public synchronized void invalidate(BigInteger node) {
+		for (Map.Entry<BigInteger, Interval> entry : byOwner.entrySet()) {
+			NodeRef owner = entry.getValue().owner;
+			if ((owner.id.equals(node) || owner.rangeStart.equals(node)) && byOwner.remove(entry.getKey()) != null) {
+				size--;
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		byOwner.clear();
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long hits() {
+		return hits.sum();
+	}
+
+	public long misses() {
+		return misses.sum();
+	}
+}
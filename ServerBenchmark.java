@@ -0,0 +1,69 @@
+package chord;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Load check for the server execution modes. Starts a server in each mode whose handler blocks
+ * for a short while, like a node waiting on another node, then keeps the given number of lookups
+ * in flight at once and reports requests per second and p99 latency. All lookups are sent at
+ * once, so in a mode with a small worker pool the last ones queue behind all the others; each
+ * lookup may take up to the whole run rather than the usual request timeout.
+ * Usage: java chord.ServerBenchmark [concurrent lookups] [handler delay ms] [modes...]
+ */
+
+public class ServerBenchmark {
+	private static final long RUN_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	public static void main(String[] args) throws Exception {
+		int concurrency = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int delayMillis = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		String[] modes = args.length > 2 ? Arrays.copyOfRange(args, 2, args.length)
+				: new String[] { "virtual", "platform", "nio" };
+		MessageHandler blockingHandler = (message, connection) -> {
+			try {
+				Thread.sleep(delayMillis);
+				connection.reply(message, message.get(0));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		};
+		System.out.println("mode\t\trequests/s\tp50 ms\t\tp99 ms");
+		for (String mode : modes) {
+			NodeServer server = NodeServer.create(mode, 0, blockingHandler);
+			Thread serverThread = new Thread(server);
+			serverThread.setDaemon(true);
+			serverThread.start();
+			InetAddress localhost = InetAddress.getLoopbackAddress();
+			ConnectionPool pool = new ConnectionPool(server.getPort(), nodeId -> localhost, blockingHandler);
+			int connections = 100;
+			// Warm up every connection once
+			for (int i = 0; i < connections; i++) {
+				pool.get(BigInteger.valueOf(i)).request(new Message(Message.QUERY_FILE, i)).get();
+			}
+			long[] latencies = new long[concurrency];
+			CompletableFuture<?>[] lookups = new CompletableFuture<?>[concurrency];
+			long start = System.nanoTime();
+			for (int i = 0; i < concurrency; i++) {
+				final int lookup = i;
+				long sent = System.nanoTime();
+				lookups[i] = pool.get(BigInteger.valueOf(i % connections)).request(new Message(Message.QUERY_FILE, i), RUN_TIMEOUT_MILLIS)
+						.thenRun(() -> latencies[lookup] = System.nanoTime() - sent);
+			}
+			CompletableFuture.allOf(lookups).get(RUN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			long elapsed = System.nanoTime() - start;
+			Arrays.sort(latencies);
+			System.out.println(String.format("%-10s\t%.0f\t\t%.1f\t\t%.1f", mode, concurrency / (elapsed / 1e9),
+					latencies[concurrency / 2] / 1e6, latencies[(int) (concurrency * 0.99)] / 1e6));
+			pool.closeAll();
+			server.close();
+		}
+	}
+}
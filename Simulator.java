@@ -0,0 +1,352 @@
+package chord;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Headless simulation of a whole ring in one JVM. Every node is a Peer in a process of its own
+ * on a MemoryNetwork, seeded by an in-memory LookUp server. The simulator builds the ring,
+ * waits for it to stabilize, then runs
+ *
+ *   lookups - random ids looked up from random nodes, iteratively and recursively
+ *   load    - keys stored through the ring, and the keys and messages each node ends up with
+ *   scans   - the whole ring, a prefix and a random interval scanned, checked against the load
+ *   churn   - rounds where a node leaves or crashes and a new one joins, with lookups between
+ *
+ * and prints hop counts, messages per operation (requests and replies both count) and how
+ * load is spread over the nodes.
+ *
+ * Lookups during churn race the repair of the ring: one made just after a join may end at the
+ * old owner of the new node's interval, and one routed through a crashed node before it is
+ * suspected fails. Those are reported, not checked. Once churn is over the ring must settle,
+ * every lookup must find the right owner and every key stored must still be readable, or the
+ * simulator exits with 1.
+ *
+ * Usage: java chord.Simulator [nodes] [lookups] [churn rounds]
+ *   -Dsim.latency=1 -Dsim.jitter=0 (milliseconds), -Dsim.loss=0 (share of messages lost),
+ *   -Dsim.seed=1. Storage defaults to memory and the request timeout to one second.
+ */
+
+public class Simulator {
+	private static final long STABLE_TIMEOUT = 120000;
+	private MemoryNetwork network;
+	private ArrayList<Peer> online;
+	private HashMap<BigInteger, InetAddress> nodeAddresses;
+	private int nextAddress = 1;
+	private Random random;
+	private PrintStream out;
+
+	public Simulator(MemoryNetwork network, long seed, PrintStream out) throws IOException {
+		this.network = network;
+		this.out = out;
+		random = new Random(seed);
+		online = new ArrayList<Peer>();
+		nodeAddresses = new HashMap<BigInteger, InetAddress>();
+		network.at(MemoryNetwork.address(0)).listen(PeerProcess.SEED_PORT, LookUpServer.handler());
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (System.getProperty(StorageEngine.TYPE_PROPERTY) == null) {
+			System.setProperty(StorageEngine.TYPE_PROPERTY, "memory");
+		}
+		if (System.getProperty("chord.timeout") == null) {
+			System.setProperty("chord.timeout", "1000");
+		}
+		int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int churn = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		long latency = Long.getLong("sim.latency", 1);
+		long jitter = Long.getLong("sim.jitter", 0);
+		double loss = Double.parseDouble(System.getProperty("sim.loss", "0"));
+		// Nodes log requests which fail during churn; only the simulator's own report is printed
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+		out.println(String.format("Simulating %d nodes, latency %d+%d ms, loss %.3f", nodes, latency, jitter, loss));
+		Metrics.export();
+		MemoryNetwork network = new MemoryNetwork(latency, jitter, loss);
+		Simulator simulator = new Simulator(network, Long.getLong("sim.seed", 1), out);
+		long start = System.nanoTime();
+		for (int i = 0; i < nodes; i++) {
+			simulator.startNode();
+			if ((i + 1) % 100 == 0) {
+				out.println("Started " + (i + 1) + " nodes");
+			}
+		}
+		out.println(String.format("Ring built in %.1f s", (System.nanoTime() - start) / 1e9));
+		simulator.awaitStable();
+		simulator.runLookups("Iterative lookups", lookups, true);
+		simulator.runLookups("Recursive lookups", lookups, false);
+		simulator.runLoad(nodes * 10);
+		simulator.runScans(nodes * 10);
+		simulator.runChurn(churn, Math.max(1, lookups / Math.max(1, churn)));
+		boolean healthy = simulator.awaitStable();
+		healthy &= simulator.runLookups("Lookups after churn", lookups, true);
+		healthy &= simulator.checkKeys(nodes * 10);
+		network.shutdown();
+		System.exit(healthy ? 0 : 1);
+	}
+
+	//Starts a node in a process of its own and joins it to the ring
+	private Peer startNode() throws IOException {
+		InetAddress address = MemoryNetwork.address(nextAddress);
+		PeerProcess process = new PeerProcess(network.at(address));
+		Peer node = new Peer("node" + nextAddress, MemoryNetwork.address(0).getHostAddress(), process);
+		nextAddress++;
+		node.enterNetwork();
+		online.add(node);
+		nodeAddresses.put(node.getGuid(), address);
+		return node;
+	}
+
+	//Successor of the id among the nodes online
+	private BigInteger owner(TreeSet<BigInteger> ring, BigInteger id) {
+		BigInteger owner = ring.ceiling(id);
+		return owner != null ? owner : ring.first();
+	}
+
+	private TreeSet<BigInteger> ring() {
+		TreeSet<BigInteger> ring = new TreeSet<BigInteger>();
+		for (Peer node : online) {
+			ring.add(node.getGuid());
+		}
+		return ring;
+	}
+
+	//Waits until every node's successor is the next node online, false when it does not happen
+	//within STABLE_TIMEOUT
+	private boolean awaitStable() throws InterruptedException {
+		long start = System.currentTimeMillis();
+		TreeSet<BigInteger> ring = ring();
+		int correct = 0;
+		while (System.currentTimeMillis() - start < STABLE_TIMEOUT) {
+			correct = 0;
+			for (Peer node : online) {
+				if (node.getSuccessor().equals(owner(ring, node.getGuid().add(BigInteger.ONE).mod(FingerTable.RING_SIZE)))) {
+					correct++;
+				}
+			}
+			if (correct == online.size()) {
+				break;
+			}
+			Thread.sleep(250);
+		}
+		out.println(String.format("Ring %s after %.1f s, %d of %d successors correct",
+				correct == online.size() ? "stable" : "not stable", (System.currentTimeMillis() - start) / 1e3, correct, online.size()));
+		return correct == online.size();
+	}
+
+	//Looks up random ids from random nodes one at a time and prints how many found the right
+	//owner, the hops and time taken and the lookup messages sent per lookup. Returns true if
+	//every lookup found the right owner.
+	private boolean runLookups(String phase, int count, boolean iterative) {
+		TreeSet<BigInteger> ring = ring();
+		byte opcode = iterative ? Message.CLOSEST_PRECEDING : Message.FIND_SUCCESSOR;
+		long lookupMessages = network.messageCount(opcode);
+		long allMessages = network.messageCount();
+		long[] hops = new long[count];
+		long[] micros = new long[count];
+		int done = 0;
+		int correct = 0;
+		for (int i = 0; i < count; i++) {
+			Peer from = online.get(random.nextInt(online.size()));
+			BigInteger id = new BigInteger(FingerTable.M, random);
+			long start = System.nanoTime();
+			try {
+				NodeRef found = from.lookup(id, iterative).get();
+				hops[done] = found.hops();
+				micros[done++] = (System.nanoTime() - start) / 1000;
+				if (found.id.equals(owner(ring, id))) {
+					correct++;
+				}
+			} catch (Exception e) {
+				// Counted as failed
+			}
+		}
+		hops = Arrays.copyOf(hops, done);
+		micros = Arrays.copyOf(micros, done);
+		Arrays.sort(hops);
+		Arrays.sort(micros);
+		out.println(phase + ":");
+		out.println(String.format("\t%d lookups, %d correct, %d failed", count, correct, count - done));
+		if (done > 0) {
+			out.println(String.format("\thops mean %.2f, p50 %d, p99 %d, max %d (log2 n = %.1f)", mean(hops), hops[done / 2],
+					hops[Math.min(done - 1, done * 99 / 100)], hops[done - 1], Math.log(online.size()) / Math.log(2)));
+			out.println(String.format("\tlatency mean %.2f ms, p99 %.2f ms", mean(micros) / 1000,
+					micros[Math.min(done - 1, done * 99 / 100)] / 1000.0));
+		}
+		// Maintenance runs meanwhile; finger refreshes are FIND_SUCCESSOR messages too
+		out.println(String.format("\t%s messages per lookup %.2f, all messages per lookup %.2f (with maintenance)",
+				iterative ? "CLOSEST_PRECEDING" : "FIND_SUCCESSOR", (double) (network.messageCount(opcode) - lookupMessages) / count,
+				(double) (network.messageCount() - allMessages) / count));
+		return correct == count;
+	}
+
+	//Stores keys through random nodes, then prints how the keys and the messages received while
+	//storing them are spread over the nodes
+	private void runLoad(int keys) throws Exception {
+		HashMap<InetAddress, Long> before = received();
+		long messages = network.messageCount();
+		for (int i = 0; i < keys; i++) {
+			online.get(random.nextInt(online.size())).put("key" + i, ("value" + i).getBytes());
+		}
+		out.println("Load:");
+		out.println(String.format("\t%d keys stored, %.2f messages per put", keys, (double) (network.messageCount() - messages) / keys));
+		long[] owned = new long[online.size()];
+		long[] receivedMessages = new long[online.size()];
+		HashMap<InetAddress, Long> after = received();
+		for (int i = 0; i < online.size(); i++) {
+			Peer node = online.get(i);
+			InetAddress address = nodeAddresses.get(node.getGuid());
+			owned[i] = node.ownedKeyCount();
+			receivedMessages[i] = after.getOrDefault(address, 0L) - before.getOrDefault(address, 0L);
+		}
+		printSpread("keys per node", owned);
+		printSpread("messages received per node", receivedMessages);
+	}
+
+	//Scans the whole ring, the keys with a prefix and a random interval from random nodes, and
+	//prints how many of the keys stored by runLoad each found and the messages it took
+	private void runScans(int keys) throws Exception {
+		out.println("Scans:");
+		BigInteger start = new BigInteger(FingerTable.M, random);
+		BigInteger end = new BigInteger(FingerTable.M, random);
+		runScan("whole ring", keys, null, null, null);
+		runScan("prefix key1", keys, null, null, "key1");
+		runScan("interval", keys, start, end, null);
+	}
+
+	private void runScan(String name, int keys, BigInteger start, BigInteger end, String prefix) throws Exception {
+		int expected = 0;
+		for (int i = 0; i < keys; i++) {
+			String key = "key" + i;
+			if ((prefix == null || key.startsWith(prefix))
+					&& (start == null || RingMath.inHalfOpen(start, end, FingerTable.hash(key)))) {
+				expected++;
+			}
+		}
+		Peer from = online.get(random.nextInt(online.size()));
+		if (start == null) {
+			start = end = from.getGuid();
+		}
+		Map<String, Integer> seen = new ConcurrentHashMap<String, Integer>();
+		long messages = network.messageCount(Message.SCAN);
+		long begin = System.nanoTime();
+		from.scan(start, end, prefix, (key, value) -> seen.merge(key, 1, Integer::sum)).get();
+		int duplicates = 0;
+		for (int count : seen.values()) {
+			duplicates += count - 1;
+		}
+		out.println(String.format("\t%s: %d of %d keys, %d seen twice, %d SCAN messages, %.1f ms", name, seen.size(), expected,
+				duplicates, network.messageCount(Message.SCAN) - messages, (System.nanoTime() - begin) / 1e6));
+	}
+
+	//Reads every key stored by runLoad through random nodes. Returns true if all of them still
+	//hold the value stored. A read which fails, rather than finding no value, is tried once
+	//more through another node.
+	private boolean checkKeys(int keys) {
+		int readable = 0;
+		for (int i = 0; i < keys; i++) {
+			for (int attempt = 0; attempt < 2; attempt++) {
+				try {
+					byte[] value = online.get(random.nextInt(online.size())).get("key" + i);
+					if (value != null && Arrays.equals(value, ("value" + i).getBytes())) {
+						readable++;
+					}
+					break;
+				} catch (IOException e) {
+					// Counted as lost unless the next attempt reads it
+				}
+			}
+		}
+		out.println("Keys after churn:");
+		out.println(String.format("\t%d of %d keys readable", readable, keys));
+		return readable == keys;
+	}
+
+	//Each round a random node leaves, gracefully or by crashing, and a new node joins. Lookups
+	//run in between without waiting for the ring to settle.
+	private void runChurn(int rounds, int lookupsPerRound) throws Exception {
+		int crashed = 0;
+		int failedLookups = 0;
+		int wrongLookups = 0;
+		long[] hops = new long[rounds * lookupsPerRound];
+		int done = 0;
+		for (int round = 0; round < rounds; round++) {
+			Peer leaving = online.remove(random.nextInt(online.size()));
+			if (random.nextBoolean()) {
+				leaving.leaveNetwork();
+			} else {
+				crashed++;
+			}
+			// A node that left exits like its process would; a crashed one just stops answering
+			network.fail(nodeAddresses.get(leaving.getGuid()));
+			startNode();
+			TreeSet<BigInteger> ring = ring();
+			for (int i = 0; i < lookupsPerRound; i++) {
+				BigInteger id = new BigInteger(FingerTable.M, random);
+				try {
+					NodeRef found = online.get(random.nextInt(online.size())).lookup(id, true).get(PeerConnection.TIMEOUT * 4,
+							TimeUnit.MILLISECONDS);
+					hops[done++] = found.hops();
+					if (!found.id.equals(owner(ring, id))) {
+						wrongLookups++;
+					}
+				} catch (Exception e) {
+					failedLookups++;
+				}
+			}
+		}
+		hops = Arrays.copyOf(hops, done);
+		out.println("Churn:");
+		out.println(String.format("\t%d rounds, %d graceful leaves, %d crashes, %d joins", rounds, rounds - crashed, crashed, rounds));
+		out.println(String.format("\t%d lookups during churn, %d wrong owner, %d failed, hops mean %.2f", rounds * lookupsPerRound,
+				wrongLookups, failedLookups, mean(hops)));
+	}
+
+	private HashMap<InetAddress, Long> received() {
+		HashMap<InetAddress, Long> received = new HashMap<InetAddress, Long>();
+		for (Map.Entry<InetAddress, AtomicLong> entry : network.messagesReceived().entrySet()) {
+			received.put(entry.getKey(), entry.getValue().get());
+		}
+		return received;
+	}
+
+	private void printSpread(String what, long[] values) {
+		double mean = mean(values);
+		double variance = 0;
+		long min = Long.MAX_VALUE;
+		long max = 0;
+		for (long value : values) {
+			variance += (value - mean) * (value - mean) / values.length;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+		out.println(String.format("\t%s: mean %.1f, std dev %.1f, min %d, max %d (%.2fx mean)", what, mean, Math.sqrt(variance),
+				min, max, mean == 0 ? 0 : max / mean));
+	}
+
+	private static double mean(long[] values) {
+		if (values.length == 0) {
+			return 0;
+		}
+		double sum = 0;
+		for (long value : values) {
+			sum += value;
+		}
+		return sum / values.length;
+	}
+}
@@ -0,0 +1,87 @@
+package chord;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Storage for the keys and values owned by a node, indexed by the keys' ring ids. The engine
+ * is chosen at startup with -Dchord.storage=log|memory|offheap (default log). Implementations
+ * must be safe to use from several threads.
+ */
+
+public interface StorageEngine extends Iterable<String> {
+	String TYPE_PROPERTY = "chord.storage";
+	byte[] EMPTY_VALUE = new byte[0];
+
+	//Stores a new write of the key
+	default void put(String key, byte[] value) {
+		put(new KeyValue(key, value, KeyValue.nextVersion()));
+	}
+
+	//Stores the entry keeping its version, used for entries received from other nodes
+	void put(KeyValue entry);
+
+	//Stores the entry unless the key is already stored with a newer version. Returns true if
+	//the entry was stored.
+	boolean putIfNewer(KeyValue entry);
+
+	//Returns the value stored for the key, or null when the key is not stored
+	byte[] get(String key);
+
+	//Same as get, returning the value together with its version
+	KeyValue getEntry(String key);
+
+	boolean delete(String key);
+
+	//Deletes the key unless it is stored with the given version or a newer one, so that a delete
+	//does not remove a write made after it. Returns true if the key was deleted.
+	boolean deleteIfOlder(String key, long version);
+
+	boolean contains(String key);
+
+	int size();
+
+	void clear();
+
+	//Copy of all keys, in ring order
+	ArrayList<String> keys();
+
+	//Copy of all entries, in ring order
+	ArrayList<KeyValue> entries();
+
+	//Entries whose ids are in the ring interval (start, end], in ring order. The interval is
+	//empty when start equals end, same as RingMath.inHalfOpen
+	ArrayList<KeyValue> range(BigInteger start, BigInteger end);
+
+	//Removes and returns the entries whose ids are in the ring interval (start, end]
+	ArrayList<KeyValue> extractRange(BigInteger start, BigInteger end);
+
+	//Keys and versions, without values, of the first maxKeys entries in the ring interval
+	//(start, end]
+	ArrayList<KeyValue> digest(BigInteger start, BigInteger end, int maxKeys);
+
+	//The first entries of the ring interval (start, end] in ring order, stopping once their
+	//values add up to maxBytes. Unlike range, the whole ring is walked from start when start
+	//equals end, so a node can page through everything it holds.
+	ArrayList<KeyValue> page(BigInteger start, BigInteger end, int maxBytes);
+
+	//Writes everything to durable storage and releases resources
+	default void close() {
+	}
+
+	//Creates the engine selected at startup for the named node
+	static StorageEngine create(String nodeName) {
+		String type = System.getProperty(TYPE_PROPERTY, "log");
+		switch (type) {
+		case "log":
+			return new LogStorageEngine(LogStorageEngine.directoryFor(nodeName));
+		case "memory":
+			return new InMemoryStorageEngine();
+		case "offheap":
+			return new OffHeapStorageEngine();
+		default:
+			throw new IllegalArgumentException("Unknown storage engine " + type + ", expected log, memory or offheap");
+		}
+	}
+}
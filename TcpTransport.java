@@ -0,0 +1,25 @@
+package chord;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Transport over TCP sockets. Connections are served by the server selected at startup, see
+ * NodeServer, running on a thread of its own.
+ */
+
+public class TcpTransport implements Transport {
+
+	@Override
+	public void listen(int port, MessageHandler handler) throws IOException {
+		Thread listeningThread = new Thread(NodeServer.create(port, handler), "listener-" + port);
+		listeningThread.setDaemon(true);
+		listeningThread.start();
+	}
+
+	@Override
+	public RequestConnection connect(InetAddress address, int port, MessageHandler handler) throws IOException {
+		return PeerConnection.open(address, port, handler);
+	}
+}
@@ -0,0 +1,97 @@
+package chord;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Traces of requests across the ring. A sampled share of the operations started here, given by
+ * -Dchord.trace.sample (0.01 by default), gets a trace id, which every message sent on its
+ * behalf carries from hop to hop. Each node handling a traced message records a span: the
+ * trace, the node, the opcode and what it did. The last SPANS spans are kept in memory and
+ * served by the metrics endpoint, so the hops of one lookup can be followed through the nodes
+ * it went through; -Dchord.trace.log also prints them. Events of a node outside of any request,
+ * such as joins, leaves and handoffs, are kept the same way as spans of trace 0.
+ */
+
+public class Tracer {
+	public static final String SAMPLE_PROPERTY = "chord.trace.sample";
+	private static final double SAMPLE = Double.parseDouble(System.getProperty(SAMPLE_PROPERTY, "0.01"));
+	private static final boolean LOG = Boolean.getBoolean("chord.trace.log");
+	private static final int SPANS = 4096;
+	private static final Span[] spans = new Span[SPANS];
+	private static long nextSpan = 0;
+
+	private static class Span {
+		long traceId;
+		long time;
+		BigInteger node;
+		byte opcode;
+		String event;
+	}
+
+	private Tracer() {
+	}
+
+	//Trace id for a new operation, 0 when it is not sampled
+	public static long newTrace() {
+		if (SAMPLE <= 0 || ThreadLocalRandom.current().nextDouble() >= SAMPLE) {
+			return 0;
+		}
+		// Positive, so the id takes a byte less on the wire
+		long traceId = ThreadLocalRandom.current().nextLong() >>> 1;
+		return traceId == 0 ? 1 : traceId;
+	}
+
+	//Records what the node did for a traced message; untraced messages are ignored
+	public static void record(long traceId, BigInteger node, byte opcode, String event) {
+		if (traceId == 0) {
+			return;
+		}
+		add(traceId, node, opcode, event);
+	}
+
+	//Records an event of the node which no request is traced for, e.g. a join or a handoff
+	public static void event(BigInteger node, byte opcode, String event) {
+		add(0, node, opcode, event);
+	}
+
+	private static void add(long traceId, BigInteger node, byte opcode, String event) {
+		Span span = new Span();
+		span.traceId = traceId;
+		span.time = System.currentTimeMillis();
+		span.node = node;
+		span.opcode = opcode;
+		span.event = event;
+		synchronized (spans) {
+			spans[(int) (nextSpan++ % SPANS)] = span;
+		}
+		if (LOG) {
+			System.err.println(format(span));
+		}
+	}
+
+	//Spans of the trace, or of every trace and event when the id is 0, oldest first
+	public static ArrayList<String> spans(long traceId) {
+		ArrayList<String> found = new ArrayList<String>();
+		synchronized (spans) {
+			for (long i = Math.max(0, nextSpan - SPANS); i < nextSpan; i++) {
+				Span span = spans[(int) (i % SPANS)];
+				if (traceId == 0 || span.traceId == traceId) {
+					found.add(format(span));
+				}
+			}
+		}
+		return found;
+	}
+
+	public static String traceId(long traceId) {
+		return Long.toHexString(traceId);
+	}
+
+	private static String format(Span span) {
+		return String.format("%tT.%<tL trace %s node %s %s %s", span.time, traceId(span.traceId), FingerTable.shortId(span.node),
+				Message.name(span.opcode), span.event);
+	}
+}
@@ -0,0 +1,19 @@
+package chord;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * How a process reaches other processes. The TCP transport is used by real nodes; the
+ * in-memory one, see MemoryNetwork, lets a simulation run many nodes in one JVM.
+ */
+
+public interface Transport {
+	//Starts accepting connections on the port, handing their messages to the handler
+	void listen(int port, MessageHandler handler) throws IOException;
+
+	//Opens a connection to the process at the address and port. Requests the other process
+	//sends on it are handed to the handler.
+	RequestConnection connect(InetAddress address, int port, MessageHandler handler) throws IOException;
+}
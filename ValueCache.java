@@ -0,0 +1,138 @@
+package chord;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Read-through cache of values owned by other nodes, so that reads of hot keys are served
+ * without going to the owner every time. The cache holds at most -Dchord.valuecache bytes of
+ * values (0, the default, turns it off) and drops the least recently used entries beyond
+ * that. An entry lives for -Dchord.valuecache.ttl milliseconds, or until the owner reports a
+ * newer version of the key. A key is only admitted on its second miss within the recent
+ * misses, so keys read once do not push hot keys out.
+ */
+
+public class ValueCache {
+	public static final String CAPACITY_PROPERTY = "chord.valuecache";
+	public static final String TTL_PROPERTY = "chord.valuecache.ttl";
+	public static final long DEFAULT_TTL = 5000;
+	// Values larger than this share of the capacity are never cached
+	private static final int MAX_ENTRY_SHARE = 8;
+	private long capacity;
+	private long ttl;
+	private long usedBytes;
+	private LinkedHashMap<String, Entry> entries;
+	// Keys missed once recently, remembered for admission
+	private LinkedHashMap<String, Boolean> recentMisses;
+	private int maxRecentMisses;
+	private long hits;
+	private long misses;
+
+	private static class Entry {
+		KeyValue value;
+		long expiresAt;
+
+		Entry(KeyValue value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	public ValueCache() {
+		this(Long.getLong(CAPACITY_PROPERTY, 0), Long.getLong(TTL_PROPERTY, DEFAULT_TTL));
+	}
+
+	public ValueCache(long capacity, long ttl) {
+		this.capacity = capacity;
+		this.ttl = ttl;
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		recentMisses = new LinkedHashMap<String, Boolean>();
+		maxRecentMisses = 4096;
+	}
+
+	public boolean isEnabled() {
+		return capacity > 0;
+	}
+
+	public long ttl() {
+		return ttl;
+	}
+
+	//Returns the cached entry of the key, or null when it is not cached or has expired
+	public synchronized KeyValue get(String key) {
+		Entry entry = entries.get(key);
+		if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+			remove(key);
+			entry = null;
+		}
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.value;
+	}
+
+	//Returns true if the key missed recently and should be cached this time
+	public synchronized boolean admit(String key) {
+		if (recentMisses.remove(key) != null) {
+			return true;
+		}
+		recentMisses.put(key, true);
+		if (recentMisses.size() > maxRecentMisses) {
+			Iterator<String> eldest = recentMisses.keySet().iterator();
+			eldest.next();
+			eldest.remove();
+		}
+		return false;
+	}
+
+	public synchronized void put(KeyValue value) {
+		if (!isEnabled() || value.value.length > capacity / MAX_ENTRY_SHARE) {
+			return;
+		}
+		remove(value.key);
+		entries.put(value.key, new Entry(value, System.currentTimeMillis() + ttl));
+		usedBytes += value.value.length;
+		Iterator<Entry> eldest = entries.values().iterator();
+		while (usedBytes > capacity && eldest.hasNext()) {
+			usedBytes -= eldest.next().value.value.length;
+			eldest.remove();
+		}
+	}
+
+	//Drops the key if the cached copy is older than the given version
+	public synchronized void invalidate(String key, long version) {
+		Entry entry = entries.get(key);
+		if (entry != null && entry.value.version < version) {
+			remove(key);
+		}
+	}
+
+	public synchronized void remove(String key) {
+		Entry entry = entries.remove(key);
+		if (entry != null) {
+			usedBytes -= entry.value.value.length;
+		}
+	}
+
+	public synchronized void removeAll(Collection<String> keys) {
+		for (String key : keys) {
+			remove(key);
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	public synchronized long misses() {
+		return misses;
+	}
+}
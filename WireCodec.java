@@ -0,0 +1,365 @@
+package chord;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Binary encoding of messages. Each frame is
+ *
+ *   length (4 bytes, excluding itself) | version | opcode | flags | request id (varint) |
+ *   [target id] | [trace id (varint)] | field count (varint) | fields
+ *
+ * and every field is a one byte type tag followed by its value. Ids, counts and lengths are
+ * varints, strings are UTF-8, values are length prefixed bytes and ring ids are the big endian
+ * bytes of the unsigned id. The target, the virtual node a request is meant for, and the trace
+ * id are only present when their flags are set. Frames encoded and decoded are counted by
+ * opcode in the process metrics.
+ *
+ * Lengths and counts read off the wire are checked against the bytes left in the frame before
+ * anything is allocated for them, so a corrupt or hostile frame fails to decode instead of
+ * exhausting memory.
+ */
+
+public final class WireCodec {
+	public static final byte VERSION = 1;
+	public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+	private static final byte FLAG_RESPONSE = 1;
+	private static final byte FLAG_DIRECT = 2;
+	private static final byte FLAG_TARGET = 4;
+	private static final byte FLAG_TRACE = 8;
+	// Messages and bytes sent and received by opcode, created on first use. Each opcode's pair
+	// of counters is published at once, so codec threads never see one without the other.
+	private static final AtomicReferenceArray<LongAdder[]> countersOut = new AtomicReferenceArray<LongAdder[]>(256);
+	private static final AtomicReferenceArray<LongAdder[]> countersIn = new AtomicReferenceArray<LongAdder[]>(256);
+
+	private static final byte TYPE_NULL = 0;
+	private static final byte TYPE_INT = 1;
+	private static final byte TYPE_LONG = 2;
+	private static final byte TYPE_BOOLEAN = 3;
+	private static final byte TYPE_STRING = 4;
+	private static final byte TYPE_ID = 5;
+	private static final byte TYPE_ADDRESS = 6;
+	private static final byte TYPE_STRING_LIST = 7;
+	private static final byte TYPE_NODE_MAP = 8;
+	private static final byte TYPE_BYTES = 9;
+	private static final byte TYPE_ENTRIES = 10;
+	private static final byte TYPE_LONGS = 11;
+
+	// Encode buffers grow on demand and are reused by each thread
+	private static final ThreadLocal<ByteBuffer> encodeBuffers = ThreadLocal
+			.withInitial(() -> ByteBuffer.allocate(4096));
+
+	private WireCodec() {
+	}
+
+	//Encodes the message into a frame in a buffer owned by the calling thread. The returned
+	//buffer is ready to be read and is only valid until the next call on the same thread.
+	public static ByteBuffer encode(Message message) {
+		return encode(message, message.target);
+	}
+
+	//Same as encode, sending the message to the given target instead of its own
+	public static ByteBuffer encode(Message message, BigInteger target) {
+		ByteBuffer buffer = encodeBuffers.get();
+		while (true) {
+			buffer.clear();
+			try {
+				encode(message, target, buffer);
+				buffer.flip();
+				return buffer;
+			} catch (BufferOverflowException e) {
+				if (buffer.capacity() >= MAX_FRAME_LENGTH) {
+					throw new IllegalArgumentException("Message too large to encode");
+				}
+				buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+				encodeBuffers.set(buffer);
+			}
+		}
+	}
+
+	//Writes the whole frame, length prefix included, at the buffer's position
+	public static void encode(Message message, ByteBuffer buffer) {
+		encode(message, message.target, buffer);
+	}
+
+	private static void encode(Message message, BigInteger target, ByteBuffer buffer) {
+		int lengthPosition = buffer.position();
+		buffer.putInt(0);
+		buffer.put(VERSION);
+		buffer.put(message.opcode);
+		buffer.put((byte) ((message.isResponse ? FLAG_RESPONSE : 0) | (message.direct ? FLAG_DIRECT : 0)
+				| (target != null ? FLAG_TARGET : 0) | (message.traceId != 0 ? FLAG_TRACE : 0)));
+		putVarLong(buffer, message.requestId);
+		if (target != null) {
+			putId(buffer, target);
+		}
+		if (message.traceId != 0) {
+			putVarLong(buffer, message.traceId);
+		}
+		Object[] payload = message.payload == null ? new Object[0] : message.payload;
+		putVarLong(buffer, payload.length);
+		for (Object field : payload) {
+			putField(buffer, field);
+		}
+		buffer.putInt(lengthPosition, buffer.position() - lengthPosition - 4);
+		count(countersOut, "out", message.opcode, buffer.position() - lengthPosition);
+	}
+
+	//Counts a frame and its bytes. Threads racing to create an opcode's counters get the same
+	//ones from the registry.
+	private static void count(AtomicReferenceArray<LongAdder[]> counters, String direction, byte opcode, int length) {
+		int i = opcode & 0xff;
+		LongAdder[] counter = counters.get(i);
+		if (counter == null) {
+			String labels = "direction=\"" + direction + "\",type=\"" + Message.name(opcode) + "\"";
+			counter = new LongAdder[] { Metrics.counter("chord_messages_total", labels, "Frames sent and received"),
+					Metrics.counter("chord_message_bytes_total", labels, "Bytes of frames sent and received") };
+			counters.set(i, counter);
+		}
+		counter[0].increment();
+		counter[1].add(length);
+	}
+
+	//Decodes the body of one frame; the buffer holds exactly the bytes after the length prefix
+	public static Message decode(ByteBuffer buffer) {
+		int length = buffer.remaining() + 4;
+		byte version = buffer.get();
+		if (version != VERSION) {
+			throw new IllegalArgumentException("Unsupported protocol version " + version);
+		}
+		byte opcode = buffer.get();
+		byte flags = buffer.get();
+		long requestId = getVarLong(buffer);
+		BigInteger target = (flags & FLAG_TARGET) != 0 ? getId(buffer) : null;
+		long traceId = (flags & FLAG_TRACE) != 0 ? getVarLong(buffer) : 0;
+		int fieldCount = getLength(buffer, 1);
+		Object[] payload = new Object[fieldCount];
+		for (int i = 0; i < fieldCount; i++) {
+			payload[i] = getField(buffer);
+		}
+		Message message = new Message(opcode, payload);
+		message.requestId = requestId;
+		message.isResponse = (flags & FLAG_RESPONSE) != 0;
+		message.direct = (flags & FLAG_DIRECT) != 0;
+		message.target = target;
+		message.traceId = traceId;
+		count(countersIn, "in", opcode, length);
+		return message;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void putField(ByteBuffer buffer, Object field) {
+		if (field == null) {
+			buffer.put(TYPE_NULL);
+		} else if (field instanceof Integer) {
+			buffer.put(TYPE_INT);
+			putVarLong(buffer, zigZag((Integer) field));
+		} else if (field instanceof Long) {
+			buffer.put(TYPE_LONG);
+			putVarLong(buffer, zigZag((Long) field));
+		} else if (field instanceof Boolean) {
+			buffer.put(TYPE_BOOLEAN);
+			buffer.put((Boolean) field ? (byte) 1 : (byte) 0);
+		} else if (field instanceof String) {
+			buffer.put(TYPE_STRING);
+			putString(buffer, (String) field);
+		} else if (field instanceof BigInteger) {
+			buffer.put(TYPE_ID);
+			putId(buffer, (BigInteger) field);
+		} else if (field instanceof InetAddress) {
+			buffer.put(TYPE_ADDRESS);
+			putAddress(buffer, (InetAddress) field);
+		} else if (field instanceof byte[]) {
+			buffer.put(TYPE_BYTES);
+			byte[] bytes = (byte[]) field;
+			putVarLong(buffer, bytes.length);
+			buffer.put(bytes);
+		} else if (field instanceof long[]) {
+			buffer.put(TYPE_LONGS);
+			long[] longs = (long[]) field;
+			putVarLong(buffer, longs.length);
+			for (long value : longs) {
+				putVarLong(buffer, zigZag(value));
+			}
+		} else if (field instanceof KeyValue[]) {
+			buffer.put(TYPE_ENTRIES);
+			KeyValue[] entries = (KeyValue[]) field;
+			putVarLong(buffer, entries.length);
+			for (KeyValue entry : entries) {
+				putString(buffer, entry.key);
+				putVarLong(buffer, entry.version);
+				putVarLong(buffer, entry.value.length);
+				buffer.put(entry.value);
+			}
+		} else if (field instanceof Map) {
+			buffer.put(TYPE_NODE_MAP);
+			Map<BigInteger, InetAddress> nodes = (Map<BigInteger, InetAddress>) field;
+			putVarLong(buffer, nodes.size());
+			for (Map.Entry<BigInteger, InetAddress> entry : nodes.entrySet()) {
+				putId(buffer, entry.getKey());
+				putAddress(buffer, entry.getValue());
+			}
+		} else if (field instanceof List) {
+			buffer.put(TYPE_STRING_LIST);
+			List<String> strings = (List<String>) field;
+			putVarLong(buffer, strings.size());
+			for (String string : strings) {
+				putString(buffer, string);
+			}
+		} else {
+			throw new IllegalArgumentException("Cannot encode field of type " + field.getClass().getName());
+		}
+	}
+
+	private static Object getField(ByteBuffer buffer) {
+		byte type = buffer.get();
+		switch (type) {
+		case TYPE_NULL:
+			return null;
+		case TYPE_INT:
+			return (int) unZigZag(getVarLong(buffer));
+		case TYPE_LONG:
+			return unZigZag(getVarLong(buffer));
+		case TYPE_BOOLEAN:
+			return buffer.get() != 0;
+		case TYPE_STRING:
+			return getString(buffer);
+		case TYPE_ID:
+			return getId(buffer);
+		case TYPE_ADDRESS:
+			return getAddress(buffer);
+		case TYPE_BYTES:
+			byte[] bytes = new byte[getLength(buffer, 1)];
+			buffer.get(bytes);
+			return bytes;
+		case TYPE_LONGS:
+			long[] longs = new long[getLength(buffer, 1)];
+			for (int i = 0; i < longs.length; i++) {
+				longs[i] = unZigZag(getVarLong(buffer));
+			}
+			return longs;
+		case TYPE_ENTRIES:
+			// Each entry takes at least a byte for its key length, version and value length
+			KeyValue[] entries = new KeyValue[getLength(buffer, 3)];
+			for (int i = 0; i < entries.length; i++) {
+				String key = getString(buffer);
+				long version = getVarLong(buffer);
+				byte[] value = new byte[getLength(buffer, 1)];
+				buffer.get(value);
+				entries[i] = new KeyValue(key, value, version);
+			}
+			return entries;
+		case TYPE_NODE_MAP:
+			int nodeCount = getLength(buffer, 2);
+			TreeMap<BigInteger, InetAddress> nodes = new TreeMap<BigInteger, InetAddress>();
+			for (int i = 0; i < nodeCount; i++) {
+				nodes.put(getId(buffer), getAddress(buffer));
+			}
+			return nodes;
+		case TYPE_STRING_LIST:
+			int stringCount = getLength(buffer, 1);
+			ArrayList<String> strings = new ArrayList<String>(stringCount);
+			for (int i = 0; i < stringCount; i++) {
+				strings.add(getString(buffer));
+			}
+			return strings;
+		default:
+			throw new IllegalArgumentException("Unknown field type " + type);
+		}
+	}
+
+	public static void putVarLong(ByteBuffer buffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	public static long getVarLong(ByteBuffer buffer) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	//Reads a length or count of items taking at least bytesPerItem bytes each, and fails unless
+	//that many items fit in what is left of the frame
+	private static int getLength(ByteBuffer buffer, int bytesPerItem) {
+		long length = getVarLong(buffer);
+		if (length < 0 || length > MAX_FRAME_LENGTH || length * bytesPerItem > buffer.remaining()) {
+			throw new IllegalArgumentException("Length " + length + " exceeds the " + buffer.remaining() + " bytes left in the frame");
+		}
+		return (int) length;
+	}
+
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static void putString(ByteBuffer buffer, String string) {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		putVarLong(buffer, bytes.length);
+		buffer.put(bytes);
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		byte[] bytes = new byte[getLength(buffer, 1)];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	//Ring ids are unsigned, so the sign byte BigInteger may add is dropped
+	private static void putId(ByteBuffer buffer, BigInteger id) {
+		byte[] bytes = id.toByteArray();
+		int offset = bytes.length > 1 && bytes[0] == 0 ? 1 : 0;
+		putVarLong(buffer, bytes.length - offset);
+		buffer.put(bytes, offset, bytes.length - offset);
+	}
+
+	private static BigInteger getId(ByteBuffer buffer) {
+		byte[] bytes = new byte[getLength(buffer, 1)];
+		buffer.get(bytes);
+		return new BigInteger(1, bytes);
+	}
+
+	private static void putAddress(ByteBuffer buffer, InetAddress address) {
+		byte[] bytes = address.getAddress();
+		buffer.put((byte) bytes.length);
+		buffer.put(bytes);
+	}
+
+	private static InetAddress getAddress(ByteBuffer buffer) {
+		int length = buffer.get();
+		if (length != 4 && length != 16) {
+			throw new IllegalArgumentException("Malformed address of " + length + " bytes");
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		try {
+			return InetAddress.getByAddress(bytes);
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException("Malformed address", e);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package chord;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Compares the JSON results of a JMH run with those of an earlier release and fails if any
+ * benchmark got slower by more than the threshold, so regressions are caught between releases.
+ * Benchmarks are matched by name and parameters; those in only one of the runs are skipped.
+ * Usage: java -cp jmh/target/benchmarks.jar chord.BenchmarkCompare results.json baseline.json
+ *   -Dbench.threshold=0.2 (share slower counted as a regression)
+ */
+
+public class BenchmarkCompare {
+	private static final double THRESHOLD = Double.parseDouble(System.getProperty("bench.threshold", "0.2"));
+	private static final Pattern BENCHMARK = Pattern.compile("\"benchmark\"\\s*:\\s*\"([^\"]+)\"");
+	private static final Pattern PARAMS = Pattern.compile("\"params\"\\s*:\\s*\\{([^}]*)\\}");
+	private static final Pattern SCORE = Pattern.compile(
+			"\"primaryMetric\"\\s*:\\s*\\{\\s*\"score\"\\s*:\\s*([-0-9.Ee]+)\\s*,\\s*\"scoreError\"\\s*:\\s*\"?([-0-9.EeNa]+)\"?");
+
+	//Score of a benchmark and its error, the half width of its confidence interval
+	private static class Score {
+		double score;
+		double error;
+
+		Score(double score, double error) {
+			this.score = score;
+			this.error = Double.isNaN(error) ? 0 : error;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Please provide the JSON results of a run and of the run to compare it with");
+			System.exit(11);
+		}
+		Map<String, Score> results = read(args[0]);
+		Map<String, Score> baseline = read(args[1]);
+		int regressions = 0;
+		System.out.println("Compared with " + args[1] + ":");
+		for (Map.Entry<String, Score> result : results.entrySet()) {
+			Score before = baseline.get(result.getKey());
+			if (before == null) {
+				continue;
+			}
+			Score after = result.getValue();
+			double change = after.score / before.score - 1;
+			// Slower by more than the threshold even allowing for the error of the run
+			boolean regression = (after.score - after.error) / before.score - 1 > THRESHOLD;
+			if (regression) {
+				regressions++;
+			}
+			System.out.println(String.format("%-56s\t%.1f -> %.1f\t%+.0f%%%s", result.getKey(), before.score, after.score,
+					change * 100, regression ? "\tREGRESSION" : ""));
+		}
+		System.out.println(regressions + " regressions over " + Math.round(THRESHOLD * 100) + "%");
+		if (regressions > 0) {
+			System.exit(1);
+		}
+	}
+
+	//Scores of a JMH JSON result file by benchmark name and parameters, as in "name {size=16}"
+	private static Map<String, Score> read(String path) throws IOException {
+		String json = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+		LinkedHashMap<String, Score> scores = new LinkedHashMap<String, Score>();
+		// Each result starts with the JMH version
+		for (String result : json.split("\"jmhVersion\"")) {
+			Matcher benchmark = BENCHMARK.matcher(result);
+			Matcher score = SCORE.matcher(result);
+			if (!benchmark.find() || !score.find()) {
+				continue;
+			}
+			String name = benchmark.group(1);
+			name = name.substring(name.lastIndexOf('.', name.lastIndexOf('.') - 1) + 1);
+			Matcher params = PARAMS.matcher(result);
+			if (params.find() && !params.group(1).trim().isEmpty()) {
+				name += " {" + params.group(1).replaceAll("[\"\\s]", "").replace(':', '=') + "}";
+			}
+			scores.put(name, new Score(Double.parseDouble(score.group(1)), Double.parseDouble(score.group(2))));
+		}
+		return scores;
+	}
+}
@@ -0,0 +1,211 @@
+package chord;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Benchmarks of the routing, hashing and serialization hot paths: building a finger table and
+ * picking the closest preceding fingers on rings of 16 to 2^20 nodes, the ring interval and
+ * distance arithmetic, key hashing and encoding and decoding the messages of a lookup.
+ *
+ * Usage, after mvn package:
+ *   java -jar jmh/target/benchmarks.jar RingBenchmark -rf json -rff ring-benchmark.json
+ * and to compare with the results of an earlier release, see BenchmarkCompare:
+ *   java -cp jmh/target/benchmarks.jar chord.BenchmarkCompare ring-benchmark.json baseline.json
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(2)
+public class RingBenchmark {
+	private static final int TARGETS = 4096;
+
+	//Random ids and keys, walked through one per call so that every call sees other input
+	@State(Scope.Thread)
+	public static class Inputs {
+		BigInteger[] ids;
+		String[] keys;
+		int next;
+
+		@Setup
+		public void setUp() {
+			ids = randomIds(new Random(42), TARGETS + 2);
+			keys = new String[TARGETS];
+			for (int i = 0; i < TARGETS; i++) {
+				keys[i] = "user:" + i + ":profile";
+			}
+		}
+
+		int next() {
+			return next++ & (TARGETS - 1);
+		}
+	}
+
+	//A ring of ringSize nodes and the finger table of its first node
+	@State(Scope.Benchmark)
+	public static class Ring {
+		@Param({ "16", "256", "4096", "65536", "1048576" })
+		int ringSize;
+		TreeMap<BigInteger, InetAddress> nodes;
+		FingerTable fingerTable;
+
+		@Setup
+		public void setUp() {
+			nodes = ring(ringSize);
+			fingerTable = new FingerTable(FingerTable.M, nodes.firstKey());
+			fingerTable.constructFingerTable(nodes);
+		}
+	}
+
+	//Frames of a lookup request and of a lookup step's answer
+	@State(Scope.Benchmark)
+	public static class LookupFrames {
+		Message request;
+		Message step;
+		byte[] requestBody;
+		byte[] stepBody;
+
+		@Setup
+		public void setUp() {
+			TreeMap<BigInteger, InetAddress> nodes = ring(16);
+			BigInteger id = FingerTable.hash("user:1:profile");
+			request = new Message(Message.FIND_SUCCESSOR, id);
+			request.requestId = 12345;
+			TreeMap<BigInteger, InetAddress> closest = new TreeMap<BigInteger, InetAddress>();
+			closest.put(nodes.firstKey(), nodes.firstEntry().getValue());
+			closest.put(nodes.lastKey(), nodes.lastEntry().getValue());
+			step = new Message(Message.CLOSEST_PRECEDING, id).reply(false, closest);
+			requestBody = body(request);
+			stepBody = body(step);
+		}
+	}
+
+	//Frame of the live node list of a ring of listSize nodes, as sent by the LookUp server
+	@State(Scope.Benchmark)
+	public static class LiveNodesFrame {
+		@Param({ "16", "256", "4096" })
+		int listSize;
+		Message liveNodes;
+		byte[] liveNodesBody;
+
+		@Setup
+		public void setUp() {
+			liveNodes = new Message(Message.LIVE_NODES).reply(ring(listSize));
+			liveNodesBody = body(liveNodes);
+		}
+	}
+
+	@Benchmark
+	public boolean inHalfOpen(Inputs inputs) {
+		int i = inputs.next();
+		return RingMath.inHalfOpen(inputs.ids[i], inputs.ids[i + 1], inputs.ids[i + 2]);
+	}
+
+	@Benchmark
+	public boolean inOpen(Inputs inputs) {
+		int i = inputs.next();
+		return RingMath.inOpen(inputs.ids[i], inputs.ids[i + 1], inputs.ids[i + 2]);
+	}
+
+	@Benchmark
+	public BigInteger distance(Inputs inputs) {
+		int i = inputs.next();
+		return RingMath.distance(inputs.ids[i], inputs.ids[i + 1]);
+	}
+
+	@Benchmark
+	public BigInteger hash(Inputs inputs) {
+		return FingerTable.hash(inputs.keys[inputs.next()]);
+	}
+
+	@Benchmark
+	public FingerTable constructFingerTable(Ring ring) {
+		ring.fingerTable.constructFingerTable(ring.nodes);
+		return ring.fingerTable;
+	}
+
+	@Benchmark
+	public BigInteger closestPrecedingNode(Ring ring, Inputs inputs) {
+		return ring.fingerTable.closestPrecedingNode(inputs.ids[inputs.next()]);
+	}
+
+	@Benchmark
+	public ArrayList<BigInteger> closestPrecedingNodes(Ring ring, Inputs inputs) {
+		return ring.fingerTable.closestPrecedingNodes(inputs.ids[inputs.next()], 2, node -> false);
+	}
+
+	@Benchmark
+	public ByteBuffer encodeFindSuccessor(LookupFrames frames) {
+		return WireCodec.encode(frames.request);
+	}
+
+	@Benchmark
+	public Message decodeFindSuccessor(LookupFrames frames) {
+		return WireCodec.decode(ByteBuffer.wrap(frames.requestBody));
+	}
+
+	@Benchmark
+	public ByteBuffer encodeClosestPrecedingReply(LookupFrames frames) {
+		return WireCodec.encode(frames.step);
+	}
+
+	@Benchmark
+	public Message decodeClosestPrecedingReply(LookupFrames frames) {
+		return WireCodec.decode(ByteBuffer.wrap(frames.stepBody));
+	}
+
+	@Benchmark
+	public ByteBuffer encodeLiveNodes(LiveNodesFrame frame) {
+		return WireCodec.encode(frame.liveNodes);
+	}
+
+	@Benchmark
+	public Message decodeLiveNodes(LiveNodesFrame frame) {
+		return WireCodec.decode(ByteBuffer.wrap(frame.liveNodesBody));
+	}
+
+	//Ring of the given number of nodes, named like the nodes of a real ring
+	static TreeMap<BigInteger, InetAddress> ring(int size) {
+		TreeMap<BigInteger, InetAddress> ring = new TreeMap<BigInteger, InetAddress>();
+		InetAddress address = InetAddress.getLoopbackAddress();
+		for (int i = 0; ring.size() < size; i++) {
+			ring.put(FingerTable.hash("node" + i), address);
+		}
+		return ring;
+	}
+
+	private static BigInteger[] randomIds(Random random, int count) {
+		BigInteger[] ids = new BigInteger[count];
+		for (int i = 0; i < count; i++) {
+			ids[i] = new BigInteger(FingerTable.M, random);
+		}
+		return ids;
+	}
+
+	//Frame of the message without its length prefix, as handed to the decoder
+	static byte[] body(Message message) {
+		ByteBuffer frame = WireCodec.encode(message);
+		return Arrays.copyOfRange(frame.array(), frame.arrayOffset() + 4, frame.arrayOffset() + frame.limit());
+	}
+}
@@ -0,0 +1,120 @@
+package chord;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * @author: Abdul Hakim Shanavas
+ * Compares the binary frames of WireCodec with the Java object streams the nodes used to
+ * send, for the messages that are sent most often: encode plus decode time of each, and with
+ * main, their sizes.
+ * Usage: java -jar jmh/target/benchmarks.jar WireBenchmark -rf json -rff wire-benchmark.json
+ *   java -cp jmh/target/benchmarks.jar chord.WireBenchmark (sizes only)
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(2)
+@State(Scope.Benchmark)
+public class WireBenchmark {
+	@Param({ "Query file", "Insert file", "Live nodes", "Transferring files" })
+	String command;
+	Message message;
+
+	@Setup
+	public void setUp() throws IOException {
+		message = message(command);
+	}
+
+	@Benchmark
+	public Message binaryRoundTrip() {
+		ByteBuffer frame = WireCodec.encode(message);
+		frame.position(4);
+		return WireCodec.decode(frame.slice());
+	}
+
+	@Benchmark
+	public Object[] objectRoundTrip() throws IOException, ClassNotFoundException {
+		return objectRoundTrip(command, message);
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("message\t\t\tbinary bytes\tobject bytes");
+		for (String command : new String[] { "Query file", "Insert file", "Live nodes", "Transferring files" }) {
+			Message message = message(command);
+			System.out.println(String.format("%-20s\t%d\t\t%d", command, WireCodec.encode(message).remaining(),
+					objectBytes(command, message).length));
+		}
+	}
+
+	//The message sent for the command, with the payload the nodes send with it
+	private static Message message(String command) throws IOException {
+		String file = "report.pdf";
+		switch (command) {
+		case "Query file":
+			return new Message(Message.QUERY_FILE, FingerTable.hash("node1"), file, FingerTable.hash(file));
+		case "Insert file":
+			return new Message(Message.INSERT_FILE, FingerTable.hash(file), file);
+		case "Live nodes":
+			TreeMap<BigInteger, InetAddress> liveNodes = new TreeMap<BigInteger, InetAddress>();
+			for (int i = 0; i < 64; i++) {
+				liveNodes.put(FingerTable.hash("node" + i), InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) i }));
+			}
+			return new Message(Message.LIVE_NODES, liveNodes);
+		case "Transferring files":
+			ArrayList<String> files = new ArrayList<String>();
+			for (int i = 0; i < 100; i++) {
+				files.add("file-" + i + ".txt");
+			}
+			return new Message(Message.TRANSFER_FILES, files);
+		default:
+			throw new IllegalArgumentException("Unknown command " + command);
+		}
+	}
+
+	//Writes the message the way the nodes used to, with the command followed by each field
+	private static byte[] objectBytes(String command, Message message) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream outputStream = new ObjectOutputStream(bytes);
+		outputStream.writeObject(command);
+		for (Object field : message.payload) {
+			outputStream.writeObject(field);
+		}
+		outputStream.flush();
+		return bytes.toByteArray();
+	}
+
+	//Writes the message as objectBytes does and reads it back, returns the fields read
+	private static Object[] objectRoundTrip(String command, Message message) throws IOException, ClassNotFoundException {
+		ObjectInputStream inputStream = new ObjectInputStream(new ByteArrayInputStream(objectBytes(command, message)));
+		inputStream.readObject();
+		Object[] fields = new Object[message.payload.length];
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = inputStream.readObject();
+		}
+		return fields;
+	}
+}